@@ -0,0 +1,84 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.PoiWayBundle;
+import org.mapsforge.map.datastore.PointOfInterest;
+import org.mapsforge.map.datastore.Way;
+import org.mapsforge.map.reader.MapFile;
+import org.mapsforge.map.reader.header.MapFileInfo;
+import org.mapsforge.map.reader.header.SubFileParameter;
+
+/**
+ * Map file reading map data of tiles through the server-wide map data cache.
+ * Above a sub-file's base zoom level one block covers several tiles:
+ * the whole block is decoded once and map data of each tile is filtered from it
+ * the same way MapFile filters a single tile query,
+ * i.e. points of interest by tile and ways by tile extended by way filter distance.
+ * At or below base zoom level map data of tile is cached as read.
+ */
+public class CachedMapFile extends MapFile {
+
+	private final MapDataCache mapDataCache;
+
+	public CachedMapFile(File mapFile, String language, MapDataCache mapDataCache) {
+		super(mapFile, language);
+		this.mapDataCache = mapDataCache;
+	}
+
+	public CachedMapFile(FileChannel mapFileChannel, long lastModified, String language, MapDataCache mapDataCache) {
+		super(mapFileChannel, lastModified, language);
+		this.mapDataCache = mapDataCache;
+	}
+
+	@Override
+	public MapReadResult readMapData(Tile tile) {
+		MapFileInfo mapFileInfo = getMapFileInfo();
+		int queryZoomLevel = Math.max(mapFileInfo.zoomLevelMin, Math.min(mapFileInfo.zoomLevelMax, tile.zoomLevel));
+		SubFileParameter subFileParameter = getMapFileHeader().getSubFileParameter(queryZoomLevel);
+		if (subFileParameter == null || tile.zoomLevel <= subFileParameter.baseZoomLevel) {
+			MapReadResult tileMapReadResult = mapDataCache.get(this, tile.zoomLevel, tile.tileX, tile.tileY, () -> super.readMapData(tile));
+			if (tileMapReadResult == null) return null;
+			// Cached lists are shared, hand out copies only
+			MapReadResult mapReadResult = new MapReadResult();
+			mapReadResult.isWater = tileMapReadResult.isWater;
+			mapReadResult.add(new PoiWayBundle(tileMapReadResult.pointOfInterests, tileMapReadResult.ways));
+			return mapReadResult;
+		}
+
+		int zoomDiff = tile.zoomLevel - subFileParameter.baseZoomLevel;
+		int blockX = tile.tileX >>> zoomDiff;
+		int blockY = tile.tileY >>> zoomDiff;
+		MapReadResult blockMapReadResult = mapDataCache.get(this, tile.zoomLevel, blockX, blockY, () -> {
+			Tile upperLeft = new Tile(blockX << zoomDiff, blockY << zoomDiff, tile.zoomLevel, tile.tileSize);
+			Tile lowerRight = new Tile(((blockX + 1) << zoomDiff) - 1, ((blockY + 1) << zoomDiff) - 1, tile.zoomLevel, tile.tileSize);
+			return super.readMapData(upperLeft, lowerRight);
+		});
+		if (blockMapReadResult == null) return null;
+
+		BoundingBox boundingBox = tile.getBoundingBox();
+		BoundingBox wayBoundingBox = boundingBox.extendMeters(wayFilterDistance);
+		List<PointOfInterest> pointOfInterests = new ArrayList<PointOfInterest>();
+		for (PointOfInterest pointOfInterest : blockMapReadResult.pointOfInterests)
+			if (boundingBox.contains(pointOfInterest.position)) pointOfInterests.add(pointOfInterest);
+		List<Way> ways = new ArrayList<Way>();
+		for (Way way : blockMapReadResult.ways)
+			if (!wayFilterEnabled || wayBoundingBox.intersectsArea(way.latLongs)) ways.add(way);
+		MapReadResult mapReadResult = new MapReadResult();
+		mapReadResult.isWater = blockMapReadResult.isWater;
+		mapReadResult.add(new PoiWayBundle(pointOfInterests, ways));
+		return mapReadResult;
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		mapDataCache.remove(this);
+	}
+}
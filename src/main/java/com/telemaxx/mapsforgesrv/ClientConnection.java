@@ -0,0 +1,99 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.HttpChannelState;
+import org.eclipse.jetty.server.HttpConnection;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.BufferUtil;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+
+/**
+ * Tells whether the client of a suspended tile request is still connected.
+ * HTTP/2 stream resets and connection failures are reported by jetty to this async listener.
+ * Plain HTTP/1.1 connections are not read by jetty while their request is suspended,
+ * so they are probed by a non-blocking read whenever a render asks whether its clients are gone.
+ * Bytes of a pipelined request read by the probe are handed back to jetty's request buffer,
+ * the connection isn't probed any more after that.
+ */
+public class ClientConnection implements AsyncListener {
+
+	private final static int PROBE_BUFFER_SIZE = 4096;
+
+	private final Request request;
+	// HTTP/1.1 connection probed while request is suspended, null if not probed (any more)
+	private HttpConnection httpConnection = null;
+	private boolean gone = false;
+	private boolean completed = false;
+
+	public ClientConnection(Request request) {
+		this.request = request;
+		EndPoint endPoint = request.getHttpChannel().getEndPoint();
+		if (endPoint != null && endPoint.getConnection() instanceof HttpConnection)
+			httpConnection = (HttpConnection) endPoint.getConnection();
+	}
+
+	public synchronized boolean isGone() {
+		if (!gone && httpConnection != null) probe();
+		return gone;
+	}
+
+	/*
+	 * Whether client has gone before its response is written, connection isn't probed afterwards
+	 */
+	public synchronized boolean isGoneBeforeResponse() {
+		boolean gone = isGone();
+		httpConnection = null;
+		return gone;
+	}
+
+	/*
+	 * Connection is read only while jetty doesn't read it,
+	 * i.e. request is suspended and jetty waits neither for request content nor for next request
+	 */
+	private void probe() {
+		EndPoint endPoint = httpConnection.getEndPoint();
+		if (request.getHttpChannelState().getState() != HttpChannelState.State.WAITING || endPoint.isFillInterested()) return;
+		ByteBuffer buffer = BufferUtil.allocate(PROBE_BUFFER_SIZE);
+		try {
+			int filled = endPoint.fill(buffer);
+			if (filled < 0) {
+				gone = true;
+			} else if (filled > 0) {
+				httpConnection.onUpgradeTo(buffer);
+				httpConnection = null;
+			}
+		} catch (IOException e) {
+			gone = true;
+		}
+	}
+
+	/*
+	 * Whether request was completed by jetty already, e.g. after client reset HTTP/2 stream
+	 */
+	public synchronized boolean isCompleted() {
+		return completed;
+	}
+
+	@Override
+	public synchronized void onComplete(AsyncEvent event) {
+		completed = true;
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+	}
+
+	@Override
+	public synchronized void onError(AsyncEvent event) {
+		gone = true;
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+	}
+}
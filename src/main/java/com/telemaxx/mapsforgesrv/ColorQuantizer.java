@@ -0,0 +1,124 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.util.Arrays;
+
+/**
+ * Reduces colors of rendered tiles by median cut without dithering,
+ * keeping edges of lines and labels crisp and well compressible.
+ * Boxes of most pixels times widest channel range are split first at their weighted median,
+ * each color is replaced by the weighted mean of its box.
+ */
+public class ColorQuantizer {
+
+	// Sort keys of colors: channel value << 49 | color << 17 | pixel count
+	private final static int COLOR_SHIFT = 17;
+	private final static int CHANNEL_SHIFT = 49;
+	private final static long COUNT_MASK = (1L << COLOR_SHIFT) - 1;
+
+	/*
+	 * Return pixels 0xaarrggbb reduced to at most maxColors colors, given pixels are not modified
+	 * Alpha bits are ignored unless alpha is set
+	 */
+	public static int[] quantize(int[] pixels, int pixelCount, int maxColors, boolean alpha) {
+		int mask = alpha ? 0xffffffff : 0x00ffffff;
+		int[] sorted = new int[pixelCount];
+		for (int i = 0; i < pixelCount; i++) sorted[i] = pixels[i] & mask;
+		Arrays.sort(sorted);
+		int colorCount = 0;
+		int[] colors = new int[pixelCount];
+		long[] entries = new long[pixelCount];
+		for (int i = 0; i < pixelCount; colorCount++) {
+			int start = i;
+			while (i < pixelCount && sorted[i] == sorted[start]) i++;
+			colors[colorCount] = sorted[start];
+			// Counts are capped to fit into key, only relevant for images larger than 362 x 362 pixels
+			entries[colorCount] = ((sorted[start] & 0xffffffffL) << COLOR_SHIFT) | Math.min(i - start, COUNT_MASK);
+		}
+		int[] quantized = new int[pixelCount];
+		if (colorCount <= maxColors) {
+			for (int i = 0; i < pixelCount; i++) quantized[i] = pixels[i] & mask;
+			return quantized;
+		}
+
+		// Boxes are ranges of entries, first box holds all colors
+		int[] boxStarts = new int[maxColors];
+		int[] boxEnds = new int[maxColors];
+		boxEnds[0] = colorCount;
+		long[] boxScores = new long[maxColors];
+		int[] boxChannels = new int[maxColors];
+		int boxCount = 1;
+		scoreBox(entries, boxStarts, boxEnds, boxScores, boxChannels, 0);
+		while (boxCount < maxColors) {
+			int bestBox = -1;
+			for (int box = 0; box < boxCount; box++)
+				if (boxScores[box] > 0 && (bestBox < 0 || boxScores[box] > boxScores[bestBox])) bestBox = box;
+			if (bestBox < 0) break;
+			int bestChannel = boxChannels[bestBox];
+			int start = boxStarts[bestBox];
+			int end = boxEnds[bestBox];
+			for (int i = start; i < end; i++)
+				entries[i] = (entries[i] & ((1L << CHANNEL_SHIFT) - 1)) | ((entries[i] >>> (COLOR_SHIFT + 8 * bestChannel) & 0xff) << CHANNEL_SHIFT);
+			Arrays.sort(entries, start, end);
+			long total = 0;
+			for (int i = start; i < end; i++) total += entries[i] & COUNT_MASK;
+			long half = 0;
+			int split = start + 1;
+			for (int i = start; i < end - 1; i++) {
+				half += entries[i] & COUNT_MASK;
+				split = i + 1;
+				if (2 * half >= total) break;
+			}
+			boxStarts[boxCount] = split;
+			boxEnds[boxCount++] = end;
+			boxEnds[bestBox] = split;
+			scoreBox(entries, boxStarts, boxEnds, boxScores, boxChannels, bestBox);
+			scoreBox(entries, boxStarts, boxEnds, boxScores, boxChannels, boxCount - 1);
+		}
+
+		// Map each color to weighted mean of its box
+		int[] mapped = new int[colorCount];
+		for (int box = 0; box < boxCount; box++) {
+			long[] sums = new long[4];
+			long pixelSum = 0;
+			for (int i = boxStarts[box]; i < boxEnds[box]; i++) {
+				int color = (int) (entries[i] >>> COLOR_SHIFT);
+				long count = entries[i] & COUNT_MASK;
+				pixelSum += count;
+				for (int channel = 0; channel < 4; channel++) sums[channel] += count * ((color >>> (8 * channel)) & 0xff);
+			}
+			int mean = 0;
+			for (int channel = 0; channel < 4; channel++) mean |= (int) ((sums[channel] + pixelSum / 2) / pixelSum) << (8 * channel);
+			for (int i = boxStarts[box]; i < boxEnds[box]; i++)
+				mapped[Arrays.binarySearch(colors, 0, colorCount, (int) (entries[i] >>> COLOR_SHIFT))] = mean;
+		}
+		for (int i = 0; i < pixelCount; i++) quantized[i] = mapped[Arrays.binarySearch(colors, 0, colorCount, pixels[i] & mask)];
+		return quantized;
+	}
+
+	/*
+	 * Score of box = pixels in box times range of widest channel, 0 if box can't be split
+	 */
+	private static void scoreBox(long[] entries, int[] boxStarts, int[] boxEnds, long[] boxScores, int[] boxChannels, int box) {
+		boxScores[box] = 0;
+		if (boxEnds[box] - boxStarts[box] < 2) return;
+		long pixelSum = 0;
+		int[] min = { 255, 255, 255, 255 };
+		int[] max = { 0, 0, 0, 0 };
+		for (int i = boxStarts[box]; i < boxEnds[box]; i++) {
+			int color = (int) (entries[i] >>> COLOR_SHIFT);
+			pixelSum += entries[i] & COUNT_MASK;
+			for (int channel = 0; channel < 4; channel++) {
+				int value = (color >>> (8 * channel)) & 0xff;
+				min[channel] = Math.min(min[channel], value);
+				max[channel] = Math.max(max[channel], value);
+			}
+		}
+		for (int channel = 0; channel < 4; channel++) {
+			long score = pixelSum * (max[channel] - min[channel]);
+			if (score > boxScores[box]) {
+				boxScores[box] = score;
+				boxChannels[box] = channel;
+			}
+		}
+	}
+}
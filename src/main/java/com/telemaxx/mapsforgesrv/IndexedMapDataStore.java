@@ -0,0 +1,153 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.datastore.MapDataStore;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.MultiMapDataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map data store of a folder of map files with a tile grid index over their bounding boxes.
+ * Each grid cell is served by its own MultiMapDataStore holding only map files intersecting the cell,
+ * so per-tile queries consult nearby map files only instead of scanning all of them.
+ * Cells are set up lazily on first use, queries spanning several cells use all map files.
+ */
+public class IndexedMapDataStore extends MapDataStore {
+
+	private final static Logger logger = LoggerFactory.getLogger(IndexedMapDataStore.class);
+
+	// Grid cells are tiles of this zoom level
+	private final static byte INDEX_ZOOM = 8;
+	private final List<MapDataStore> mapDataStores;
+	// All map files, used for queries not fitting into one cell
+	private final MultiMapDataStore allMapDataStore = new MultiMapDataStore(MultiMapDataStore.DataPolicy.RETURN_ALL);
+	// Grid cell -> indices of map files intersecting cell
+	private final Map<Long, int[]> index = new HashMap<Long, int[]>();
+	private final Map<Long, MultiMapDataStore> cells = new ConcurrentHashMap<Long, MultiMapDataStore>();
+	private final MultiMapDataStore emptyCell = new MultiMapDataStore(MultiMapDataStore.DataPolicy.RETURN_ALL);
+
+	/*
+	 * Bounding boxes of map data stores are taken from their map file headers read when opened
+	 */
+	public IndexedMapDataStore(File folder, List<MapDataStore> mapDataStores) {
+		this.mapDataStores = mapDataStores;
+		for (MapDataStore mapDataStore : mapDataStores) allMapDataStore.addMapDataStore(mapDataStore, true, true);
+		Map<Long, List<Integer>> cellIndices = new HashMap<Long, List<Integer>>();
+		for (int i = 0; i < mapDataStores.size(); i++) {
+			BoundingBox boundingBox = mapDataStores.get(i).boundingBox();
+			int xMin = Math.max(0, MercatorProjection.longitudeToTileX(boundingBox.minLongitude, INDEX_ZOOM) - 1);
+			int xMax = Math.min((1 << INDEX_ZOOM) - 1, MercatorProjection.longitudeToTileX(boundingBox.maxLongitude, INDEX_ZOOM) + 1);
+			int yMin = Math.max(0, MercatorProjection.latitudeToTileY(boundingBox.maxLatitude, INDEX_ZOOM) - 1);
+			int yMax = Math.min((1 << INDEX_ZOOM) - 1, MercatorProjection.latitudeToTileY(boundingBox.minLatitude, INDEX_ZOOM) + 1);
+			for (int x = xMin; x <= xMax; x++) {
+				for (int y = yMin; y <= yMax; y++) {
+					// Extended by a meter to cover rounding of child tile bounds
+					if (!boundingBox.intersects(new Tile(x, y, INDEX_ZOOM, PropertiesParser.DEFAULT_TILE_RENDERSIZE).getBoundingBox().extendMeters(1))) continue;
+					cellIndices.computeIfAbsent(cellKey(x, y), key -> new ArrayList<Integer>()).add(i);
+				}
+			}
+		}
+		cellIndices.forEach((key, indices) -> index.put(key, indices.stream().mapToInt(Integer::intValue).toArray()));
+		logger.info("'" + folder + "' indexed: " + mapDataStores.size() + " map files in " + index.size() + " grid cells"); //$NON-NLS-1$
+	}
+
+	/*
+	 * Multi map data store of grid cell containing tile,
+	 * all map files for tiles larger than a grid cell
+	 */
+	private MultiMapDataStore getMapDataStore(Tile tile) {
+		if (tile.zoomLevel < INDEX_ZOOM) return allMapDataStore;
+		int zoomDiff = tile.zoomLevel - INDEX_ZOOM;
+		long key = cellKey(tile.tileX >>> zoomDiff, tile.tileY >>> zoomDiff);
+		int[] indices = index.get(key);
+		if (indices == null) return emptyCell;
+		return cells.computeIfAbsent(key, k -> {
+			MultiMapDataStore cell = new MultiMapDataStore(MultiMapDataStore.DataPolicy.RETURN_ALL);
+			for (int i : indices) cell.addMapDataStore(mapDataStores.get(i), false, false);
+			return cell;
+		});
+	}
+
+	private static long cellKey(int x, int y) {
+		return ((long) x << 32) | y;
+	}
+
+	@Override
+	public BoundingBox boundingBox() {
+		return allMapDataStore.boundingBox();
+	}
+
+	/*
+	 * Map files are shared and released by task handler, cells are dropped only
+	 */
+	@Override
+	public void close() {
+		cells.clear();
+	}
+
+	@Override
+	public long getDataTimestamp(Tile tile) {
+		return getMapDataStore(tile).getDataTimestamp(tile);
+	}
+
+	@Override
+	public MapReadResult readMapData(Tile tile) {
+		return getMapDataStore(tile).readMapData(tile);
+	}
+
+	@Override
+	public MapReadResult readMapData(Tile upperLeft, Tile lowerRight) {
+		return allMapDataStore.readMapData(upperLeft, lowerRight);
+	}
+
+	@Override
+	public MapReadResult readPoiData(Tile tile) {
+		return getMapDataStore(tile).readPoiData(tile);
+	}
+
+	@Override
+	public MapReadResult readPoiData(Tile upperLeft, Tile lowerRight) {
+		return allMapDataStore.readPoiData(upperLeft, lowerRight);
+	}
+
+	@Override
+	public LatLong startPosition() {
+		return allMapDataStore.startPosition();
+	}
+
+	@Override
+	public Byte startZoomLevel() {
+		return allMapDataStore.startZoomLevel();
+	}
+
+	@Override
+	public boolean supportsTile(Tile tile) {
+		return getMapDataStore(tile).supportsTile(tile);
+	}
+
+	@Override
+	public boolean supportsFullTile(Tile tile) {
+		return getMapDataStore(tile).supportsFullTile(tile);
+	}
+
+	@Override
+	public boolean supportsArea(BoundingBox boundingBox, byte zoomLevel) {
+		return allMapDataStore.supportsArea(boundingBox, zoomLevel);
+	}
+
+	@Override
+	public boolean supportsFullArea(BoundingBox boundingBox, byte zoomLevel) {
+		return allMapDataStore.supportsFullArea(boundingBox, zoomLevel);
+	}
+}
@@ -0,0 +1,268 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Read-only file channel opening its file on first read only.
+ * Open files are limited by a pool shared by all lazy channels:
+ * when exceeded, least recently used idle files are closed and reopened on next read.
+ * Intended to be passed to MapFile, which only reads, positions and queries size.
+ */
+public class LazyFileChannel extends FileChannel {
+
+	private final Path path;
+	private final Pool pool;
+	private final long size;
+	// Guards file channel, held while reading so that pool never closes a file being read
+	private final ReentrantLock lock = new ReentrantLock();
+	private FileChannel fileChannel = null;
+	private long position = 0;
+	private volatile long lastUsed = 0;
+
+	public LazyFileChannel(Path path, Pool pool) throws IOException {
+		this.path = path;
+		this.pool = pool;
+		size = Files.size(path);
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/*
+	 * Return open file channel, open file if closed, lock held by caller
+	 */
+	private FileChannel open() throws IOException {
+		if (!isOpen()) throw new ClosedChannelException();
+		lastUsed = System.nanoTime();
+		if (fileChannel == null) {
+			fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+			pool.opened(this);
+		}
+		return fileChannel;
+	}
+
+	/*
+	 * Close file unless being read, called by pool
+	 */
+	private boolean closeIdle() {
+		if (!lock.tryLock()) return false;
+		try {
+			closeFile();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void closeFile() {
+		if (fileChannel == null) return;
+		try {
+			fileChannel.close();
+		} catch (IOException e) {}
+		fileChannel = null;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		lock.lock();
+		try {
+			int count = open().read(dst, position);
+			if (count > 0) position += count;
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		lock.lock();
+		try {
+			return open().read(dst, position);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		lock.lock();
+		try {
+			long count = 0;
+			for (int i = offset; i < offset + length; i++) {
+				int n = read(dsts[i]);
+				if (n < 0) return count > 0 ? count : -1;
+				count += n;
+				if (dsts[i].hasRemaining()) break;
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long position() throws IOException {
+		lock.lock();
+		try {
+			if (!isOpen()) throw new ClosedChannelException();
+			return position;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public FileChannel position(long newPosition) throws IOException {
+		if (newPosition < 0) throw new IllegalArgumentException("Negative position"); //$NON-NLS-1$
+		lock.lock();
+		try {
+			if (!isOpen()) throw new ClosedChannelException();
+			position = newPosition;
+			return this;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long size() throws IOException {
+		if (!isOpen()) throw new ClosedChannelException();
+		return size;
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		lock.lock();
+		try {
+			return open().transferTo(position, count, target);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		lock.lock();
+		try {
+			return open().map(mode, position, size);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		throw new UnsupportedOperationException("Locking not supported: " + path); //$NON-NLS-1$
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		throw new UnsupportedOperationException("Locking not supported: " + path); //$NON-NLS-1$
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException {
+		lock.lock();
+		try {
+			closeFile();
+		} finally {
+			lock.unlock();
+		}
+		pool.closed(this);
+	}
+
+	/**
+	 * Bounded set of open files of lazy file channels.
+	 */
+	public static class Pool {
+
+		private final int maxOpenFiles;
+		private final Set<LazyFileChannel> openChannels = new HashSet<LazyFileChannel>();
+		private long opens = 0;
+		private long evictions = 0;
+
+		public Pool(int maxOpenFiles) {
+			this.maxOpenFiles = maxOpenFiles;
+		}
+
+		/*
+		 * Register newly opened channel and close least recently used idle ones exceeding limit
+		 * Channels being read are skipped, so limit may be exceeded temporarily
+		 */
+		private synchronized void opened(LazyFileChannel channel) {
+			opens++;
+			openChannels.add(channel);
+			while (openChannels.size() > maxOpenFiles) {
+				LazyFileChannel leastRecentlyUsed = null;
+				for (LazyFileChannel openChannel : openChannels) {
+					if (openChannel == channel || openChannel.lock.isLocked()) continue;
+					if (leastRecentlyUsed == null || openChannel.lastUsed < leastRecentlyUsed.lastUsed) leastRecentlyUsed = openChannel;
+				}
+				if (leastRecentlyUsed == null || !leastRecentlyUsed.closeIdle()) break;
+				openChannels.remove(leastRecentlyUsed);
+				evictions++;
+			}
+		}
+
+		private synchronized void closed(LazyFileChannel channel) {
+			openChannels.remove(channel);
+		}
+
+		public synchronized int getOpenFiles() {
+			return openChannels.size();
+		}
+
+		public synchronized long getOpens() {
+			return opens;
+		}
+
+		public synchronized long getEvictions() {
+			return evictions;
+		}
+	}
+}
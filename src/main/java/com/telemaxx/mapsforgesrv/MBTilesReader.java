@@ -0,0 +1,142 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
+
+/**
+ * Read-only access to encoded tiles of an MBTiles SQLite archive.
+ * Archive file is memory-mapped by SQLite, one pooled connection per concurrent reader.
+ */
+public class MBTilesReader {
+
+	private final static Logger logger = LoggerFactory.getLogger(MBTilesReader.class);
+
+	private final File file;
+	private final SQLiteConfig sqliteConfig;
+	private final String format;
+	private final int zoomMin;
+	private final int zoomMax;
+	private final ConcurrentLinkedQueue<TileQuery> idleQueries = new ConcurrentLinkedQueue<TileQuery>();
+	private volatile boolean closed = false;
+
+	public MBTilesReader(File file) throws SQLException {
+		this.file = file;
+		sqliteConfig = new SQLiteConfig();
+		sqliteConfig.setReadOnly(true);
+		sqliteConfig.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, Long.toString(file.length()));
+		String format = null;
+		int zoomMin = 0, zoomMax = Integer.MAX_VALUE;
+		TileQuery tileQuery = new TileQuery();
+		try (Statement statement = tileQuery.connection.createStatement();
+				ResultSet resultSet = statement.executeQuery("SELECT name, value FROM metadata")) { //$NON-NLS-1$
+			while (resultSet.next()) {
+				String name = resultSet.getString(1);
+				String value = resultSet.getString(2);
+				if (value == null) continue;
+				try {
+					if (name.equals("format")) format = value.trim().toLowerCase(); //$NON-NLS-1$
+					else if (name.equals("minzoom")) zoomMin = Integer.parseInt(value.trim()); //$NON-NLS-1$
+					else if (name.equals("maxzoom")) zoomMax = Integer.parseInt(value.trim()); //$NON-NLS-1$
+				} catch (NumberFormatException e) {
+					logger.warn("Ignoring invalid metadata " + name + "='" + value + "' of '" + file + "'"); //$NON-NLS-1$
+				}
+			}
+		} catch (SQLException e) {
+			tileQuery.close();
+			throw e;
+		}
+		if (format == null) format = MapsforgeConfig.TILE_EXTENSION;
+		if (format.equals("jpeg")) format = "jpg"; //$NON-NLS-1$ //$NON-NLS-2$
+		this.format = format;
+		this.zoomMin = zoomMin;
+		this.zoomMax = zoomMax;
+		idleQueries.add(tileQuery);
+	}
+
+	/*
+	 * Return tile given by XYZ tile numbers, null if not contained in archive
+	 */
+	public byte[] get(int x, int y, int z) throws SQLException {
+		if (z < zoomMin || z > zoomMax) return null;
+		TileQuery tileQuery = idleQueries.poll();
+		if (tileQuery == null) tileQuery = new TileQuery();
+		try {
+			return tileQuery.get(x, (1 << z) - 1 - y, z);
+		} catch (SQLException e) {
+			tileQuery.close();
+			tileQuery = null;
+			throw e;
+		} finally {
+			if (tileQuery != null) {
+				idleQueries.add(tileQuery);
+				if (closed) close();
+			}
+		}
+	}
+
+	/*
+	 * Image format of tiles, e.g. "png" or "jpg"
+	 */
+	public String getFormat() {
+		return format;
+	}
+
+	public int getZoomMin() {
+		return zoomMin;
+	}
+
+	public int getZoomMax() {
+		return zoomMax;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void close() {
+		closed = true;
+		TileQuery tileQuery;
+		while ((tileQuery = idleQueries.poll()) != null) tileQuery.close();
+	}
+
+	private class TileQuery {
+		final Connection connection;
+		final PreparedStatement statement;
+
+		TileQuery() throws SQLException {
+			connection = sqliteConfig.createConnection("jdbc:sqlite:" + file.getAbsolutePath()); //$NON-NLS-1$
+			try {
+				statement = connection.prepareStatement(
+						"SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?"); //$NON-NLS-1$
+			} catch (SQLException e) {
+				connection.close();
+				throw e;
+			}
+		}
+
+		byte[] get(int column, int row, int z) throws SQLException {
+			statement.setInt(1, z);
+			statement.setInt(2, column);
+			statement.setInt(3, row);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				return resultSet.next() ? resultSet.getBytes(1) : null;
+			}
+		}
+
+		void close() {
+			try {
+				statement.close();
+				connection.close();
+			} catch (SQLException e) {}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.util.MercatorProjection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes encoded tiles into a single MBTiles 1.3 SQLite archive.
+ * Tiles are inserted in batches within one transaction each,
+ * metadata is merged with an already existing archive so that writing can be resumed.
+ */
+public class MBTilesWriter {
+
+	private final static Logger logger = LoggerFactory.getLogger(MBTilesWriter.class);
+
+	private final static int BATCH_SIZE = 1000;
+
+	private final File file;
+	private final Connection connection;
+	private final PreparedStatement insertStatement;
+	private final PreparedStatement selectStatement;
+	private final Map<String, String> metadata;
+	private int batchCount = 0;
+	private boolean closed = false;
+
+	/*
+	 * Open or create archive and merge zoom range and bounds into its metadata
+	 */
+	public MBTilesWriter(File file, Map<String, String> metadata, BoundingBox boundingBox, int zoomMin, int zoomMax) throws SQLException {
+		this.file = file;
+		connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath()); //$NON-NLS-1$
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("PRAGMA journal_mode=WAL"); //$NON-NLS-1$
+			statement.execute("PRAGMA synchronous=NORMAL"); //$NON-NLS-1$
+			statement.execute("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)"); //$NON-NLS-1$
+			statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS metadata_index ON metadata (name)"); //$NON-NLS-1$
+			statement.execute("CREATE TABLE IF NOT EXISTS tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)"); //$NON-NLS-1$
+			statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)"); //$NON-NLS-1$
+		}
+		this.metadata = readMetadata();
+		String existingBounds = this.metadata.get("bounds"); //$NON-NLS-1$
+		if (existingBounds != null) {
+			try {
+				String[] bounds = existingBounds.split(","); //$NON-NLS-1$
+				boundingBox = boundingBox.extendBoundingBox(new BoundingBox(Double.parseDouble(bounds[1]),
+						Double.parseDouble(bounds[0]), Double.parseDouble(bounds[3]), Double.parseDouble(bounds[2])));
+			} catch (RuntimeException e) {
+				logger.warn("Ignoring invalid bounds '" + existingBounds + "' of '" + file + "'"); //$NON-NLS-1$
+			}
+		}
+		zoomMin = Math.min(zoomMin, parseInt(this.metadata.get("minzoom"), zoomMin)); //$NON-NLS-1$
+		zoomMax = Math.max(zoomMax, parseInt(this.metadata.get("maxzoom"), zoomMax)); //$NON-NLS-1$
+		this.metadata.putAll(metadata);
+		// Web mercator tiles don't cover poles
+		boundingBox = new BoundingBox(Math.max(boundingBox.minLatitude, MercatorProjection.LATITUDE_MIN), boundingBox.minLongitude,
+				Math.min(boundingBox.maxLatitude, MercatorProjection.LATITUDE_MAX), boundingBox.maxLongitude);
+		this.metadata.put("bounds", String.format(Locale.ROOT, "%.6f,%.6f,%.6f,%.6f", boundingBox.minLongitude, //$NON-NLS-1$ //$NON-NLS-2$
+				boundingBox.minLatitude, boundingBox.maxLongitude, boundingBox.maxLatitude));
+		this.metadata.put("center", String.format(Locale.ROOT, "%.6f,%.6f,%d", boundingBox.getCenterPoint().longitude, //$NON-NLS-1$ //$NON-NLS-2$
+				boundingBox.getCenterPoint().latitude, zoomMin));
+		this.metadata.put("minzoom", Integer.toString(zoomMin)); //$NON-NLS-1$
+		this.metadata.put("maxzoom", Integer.toString(zoomMax)); //$NON-NLS-1$
+		writeMetadata();
+		connection.setAutoCommit(false);
+		insertStatement = connection.prepareStatement(
+				"INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)"); //$NON-NLS-1$
+		selectStatement = connection.prepareStatement(
+				"SELECT 1 FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?"); //$NON-NLS-1$
+	}
+
+	/*
+	 * Check for tile given by XYZ tile numbers being stored
+	 */
+	public synchronized boolean contains(int x, int y, int z) throws SQLException {
+		selectStatement.setInt(1, z);
+		selectStatement.setInt(2, x);
+		selectStatement.setInt(3, tmsRow(y, z));
+		try (ResultSet resultSet = selectStatement.executeQuery()) {
+			return resultSet.next();
+		}
+	}
+
+	/*
+	 * Add tile given by XYZ tile numbers, committed with next full batch
+	 */
+	public synchronized void put(int x, int y, int z, byte[] data) throws SQLException {
+		if (closed) throw new SQLException("Archive '" + file + "' already closed"); //$NON-NLS-1$
+		insertStatement.setInt(1, z);
+		insertStatement.setInt(2, x);
+		insertStatement.setInt(3, tmsRow(y, z));
+		insertStatement.setBytes(4, data);
+		insertStatement.addBatch();
+		if (++batchCount >= BATCH_SIZE) flush();
+	}
+
+	public synchronized void flush() throws SQLException {
+		if (batchCount == 0) return;
+		insertStatement.executeBatch();
+		connection.commit();
+		batchCount = 0;
+	}
+
+	/*
+	 * Commit pending tiles and turn archive back into a single self-contained file
+	 */
+	public synchronized void close() {
+		if (closed) return;
+		closed = true;
+		try {
+			flush();
+			insertStatement.close();
+			selectStatement.close();
+			connection.setAutoCommit(true);
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("PRAGMA journal_mode=DELETE"); //$NON-NLS-1$
+			}
+		} catch (SQLException e) {
+			logger.error("Can't finish archive '" + file + "': " + e.getMessage()); //$NON-NLS-1$
+		} finally {
+			try {
+				connection.close();
+			} catch (SQLException e) {}
+		}
+	}
+
+	private Map<String, String> readMetadata() throws SQLException {
+		Map<String, String> metadata = new HashMap<String, String>();
+		try (Statement statement = connection.createStatement();
+				ResultSet resultSet = statement.executeQuery("SELECT name, value FROM metadata")) { //$NON-NLS-1$
+			while (resultSet.next()) metadata.put(resultSet.getString(1), resultSet.getString(2));
+		}
+		return metadata;
+	}
+
+	private void writeMetadata() throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement("INSERT OR REPLACE INTO metadata (name, value) VALUES (?, ?)")) { //$NON-NLS-1$
+			for (Map.Entry<String, String> entry : metadata.entrySet()) {
+				statement.setString(1, entry.getKey());
+				statement.setString(2, entry.getValue());
+				statement.executeUpdate();
+			}
+		}
+	}
+
+	// MBTiles rows are numbered from south to north
+	private static int tmsRow(int y, int z) {
+		return (1 << z) - 1 - y;
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.datastore.PointOfInterest;
+import org.mapsforge.map.datastore.Way;
+
+/**
+ * Size-bounded in-heap store of decoded map data shared by all tasks.
+ * An entry holds map data of one map file block read for one zoom level,
+ * it is decoded once by the first reader while concurrent readers of the same block wait for it.
+ * Entries are weighted by their estimated heap size and evicted
+ * in least-recently-used order when the memory budget is exceeded.
+ */
+public class MapDataCache {
+
+	// Approximate heap overhead of entry, way, point of interest, tag and coordinate
+	private final static int ENTRY_OVERHEAD = 128;
+	private final static int ELEMENT_OVERHEAD = 64;
+	private final static int TAG_SIZE = 48;
+	private final static int LATLONG_SIZE = 32;
+
+	private final long maxBytes;
+	private long currentBytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	// iteration order = least recently used first
+	private final LinkedHashMap<Key, Block> entries = new LinkedHashMap<Key, Block>(1024, 0.75f, true);
+
+	public MapDataCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/*
+	 * Return map data of block, decode it with reader if not yet cached
+	 */
+	public MapReadResult get(Object mapFile, int zoom, int blockX, int blockY, Supplier<MapReadResult> reader) {
+		Key key = new Key(mapFile, zoom, blockX, blockY);
+		Block block;
+		synchronized (this) {
+			block = entries.get(key);
+			if (block != null) {
+				hits++;
+			} else {
+				misses++;
+				block = new Block();
+				entries.put(key, block);
+			}
+		}
+		synchronized (block) {
+			if (!block.decoded) {
+				block.mapReadResult = reader.get();
+				block.weight = weight(block.mapReadResult);
+				block.decoded = true;
+				add(key, block);
+			}
+			return block.mapReadResult;
+		}
+	}
+
+	/*
+	 * Drop all blocks of a closed map file
+	 */
+	public synchronized void remove(Object mapFile) {
+		remove(key -> key.mapFile == mapFile);
+	}
+
+	private synchronized void remove(Predicate<Key> filter) {
+		Iterator<Map.Entry<Key, Block>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Key, Block> entry = iterator.next();
+			if (filter.test(entry.getKey())) {
+				currentBytes -= entry.getValue().weight;
+				iterator.remove();
+			}
+		}
+	}
+
+	private synchronized void add(Key key, Block block) {
+		// Block may have been evicted or removed while decoding
+		if (entries.get(key) != block) return;
+		if (block.weight > maxBytes) {
+			entries.remove(key);
+			return;
+		}
+		currentBytes += block.weight;
+		Iterator<Map.Entry<Key, Block>> iterator = entries.entrySet().iterator();
+		while (currentBytes > maxBytes && iterator.hasNext()) {
+			Map.Entry<Key, Block> entry = iterator.next();
+			if (!entry.getValue().decoded) continue;
+			currentBytes -= entry.getValue().weight;
+			evictions++;
+			iterator.remove();
+		}
+	}
+
+	public synchronized long getSize() {
+		return currentBytes;
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	private static long weight(MapReadResult mapReadResult) {
+		long weight = ENTRY_OVERHEAD;
+		if (mapReadResult == null) return weight;
+		for (PointOfInterest pointOfInterest : mapReadResult.pointOfInterests)
+			weight += ELEMENT_OVERHEAD + LATLONG_SIZE + weight(pointOfInterest.tags);
+		for (Way way : mapReadResult.ways) {
+			weight += ELEMENT_OVERHEAD + weight(way.tags);
+			for (LatLong[] latLongs : way.latLongs) weight += ELEMENT_OVERHEAD + (long) LATLONG_SIZE * latLongs.length;
+		}
+		return weight;
+	}
+
+	private static long weight(List<Tag> tags) {
+		long weight = 0;
+		for (Tag tag : tags) weight += TAG_SIZE + 2L * (tag.key.length() + tag.value.length());
+		return weight;
+	}
+
+	private static class Block {
+		MapReadResult mapReadResult;
+		long weight = 0;
+		volatile boolean decoded = false;
+	}
+
+	private static class Key {
+		final Object mapFile;
+		final int zoom;
+		final int blockX;
+		final int blockY;
+		Key(Object mapFile, int zoom, int blockX, int blockY) {
+			this.mapFile = mapFile;
+			this.zoom = zoom;
+			this.blockX = blockX;
+			this.blockY = blockY;
+		}
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Key)) return false;
+			Key key = (Key) object;
+			return mapFile == key.mapFile && zoom == key.zoom && blockX == key.blockX && blockY == key.blockY;
+		}
+		@Override
+		public int hashCode() {
+			return Objects.hash(System.identityHashCode(mapFile), zoom, blockX, blockY);
+		}
+	}
+}
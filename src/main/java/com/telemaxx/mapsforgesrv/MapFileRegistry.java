@@ -0,0 +1,148 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.mapsforge.map.reader.MapFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-wide store of opened map files shared by all tasks.
+ * A map file is identified by its canonical path and preferred language,
+ * so that tasks rendering the same map share one file channel and one index cache.
+ * Tasks acquire a map file and release it when no longer used,
+ * it is closed when released by its last user.
+ * Map files are opened and closed outside the registry's lock, so that tasks starting concurrently
+ * open their map files in parallel and concurrent users of a map file being opened wait for it.
+ */
+public class MapFileRegistry {
+
+	private final static Logger logger = LoggerFactory.getLogger(MapFileRegistry.class);
+
+	// key -> map file opened or being opened
+	private final Map<String, Registration> registrations = new HashMap<String, Registration>();
+	private final MapDataCache mapDataCache;
+	// Open files of map files accessed lazily
+	private final LazyFileChannel.Pool lazyFileChannelPool;
+
+	/*
+	 * Map files read map data through map data cache unless null
+	 */
+	public MapFileRegistry(MapDataCache mapDataCache, int maxOpenLazyFiles) {
+		this.mapDataCache = mapDataCache;
+		lazyFileChannelPool = new LazyFileChannel.Pool(maxOpenLazyFiles);
+	}
+
+	/*
+	 * Return map file for path, preferred language and access mode, open it if not yet opened
+	 * Access mode "mmap" reads map file through memory-mapped buffers instead of file channel reads,
+	 * access mode "lazy" opens map file on read only and closes it when idle and too many are open
+	 */
+	public SharedMapFile acquire(File file, String language, String access) throws IOException {
+		String key = file.getCanonicalPath() + "|" + language + "|" + access; //$NON-NLS-1$ //$NON-NLS-2$
+		if (access.equals(PropertiesParser.MAPFILE_ACCESS_MMAP))
+			return acquire(key, () -> createMapFile(new MappedFileChannel(file.toPath()), file.lastModified(), language));
+		if (access.equals(PropertiesParser.MAPFILE_ACCESS_LAZY))
+			return acquire(key, () -> createMapFile(new LazyFileChannel(file.toPath(), lazyFileChannelPool), file.lastModified(), language));
+		if (mapDataCache != null)
+			return acquire(key, () -> new CachedMapFile(file, language, mapDataCache));
+		return acquire(key, () -> new MapFile(file, language));
+	}
+
+	/*
+	 * Return map file for path of non-default file system, e.g. built-in world map
+	 */
+	public SharedMapFile acquire(Path path) throws IOException {
+		return acquire(path.toUri() + "|" + null + "|" + PropertiesParser.MAPFILE_ACCESS_CHANNEL, //$NON-NLS-1$ //$NON-NLS-2$
+				() -> createMapFile(FileChannel.open(path, StandardOpenOption.READ), System.currentTimeMillis(), null));
+	}
+
+	private MapFile createMapFile(FileChannel fileChannel, long lastModified, String language) {
+		if (mapDataCache != null) return new CachedMapFile(fileChannel, lastModified, language, mapDataCache);
+		return new MapFile(fileChannel, lastModified, language);
+	}
+
+	/*
+	 * Register user of map file, first user opens it, further users wait until it is opened
+	 * Failure to open is thrown to all users waiting for it, next user tries again
+	 */
+	private SharedMapFile acquire(String key, MapFileOpener opener) throws IOException {
+		Registration registration;
+		boolean opening = false;
+		synchronized (this) {
+			registration = registrations.get(key);
+			if (registration != null) {
+				logger.debug("Reusing map file " + key); //$NON-NLS-1$
+			} else {
+				registration = new Registration();
+				registrations.put(key, registration);
+				opening = true;
+			}
+			registration.users++;
+		}
+		if (opening) {
+			try {
+				registration.future.complete(new SharedMapFile(opener.open(), key));
+			} catch (IOException | RuntimeException e) {
+				synchronized (this) {
+					registrations.remove(key, registration);
+				}
+				registration.future.completeExceptionally(e);
+				throw e;
+			}
+		}
+		try {
+			return registration.future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw e;
+		}
+	}
+
+	public void release(String key) {
+		SharedMapFile sharedMapFile;
+		synchronized (this) {
+			Registration registration = registrations.get(key);
+			if (registration == null || --registration.users > 0) return;
+			registrations.remove(key);
+			// Map file released was acquired, so it is opened already
+			sharedMapFile = registration.future.join();
+		}
+		sharedMapFile.mapFile.close();
+		logger.debug("Closed map file " + key); //$NON-NLS-1$
+	}
+
+	public synchronized int getCount() {
+		return registrations.size();
+	}
+
+	public LazyFileChannel.Pool getLazyFileChannelPool() {
+		return lazyFileChannelPool;
+	}
+
+	private interface MapFileOpener {
+		MapFile open() throws IOException;
+	}
+
+	private static class Registration {
+		private final CompletableFuture<SharedMapFile> future = new CompletableFuture<SharedMapFile>();
+		private int users = 0;
+	}
+
+	public static class SharedMapFile {
+		final MapFile mapFile;
+		final String key;
+		SharedMapFile(MapFile mapFile, String key) {
+			this.mapFile = mapFile;
+			this.key = key;
+		}
+	}
+}
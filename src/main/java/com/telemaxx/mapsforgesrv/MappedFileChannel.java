@@ -0,0 +1,174 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only file channel serving reads from memory-mapped chunks of a file.
+ * Reads are copied from OS page cache without system calls,
+ * files larger than 2 GB are mapped in several chunks.
+ * Intended to be passed to MapFile, which only reads, positions and queries size.
+ */
+public class MappedFileChannel extends FileChannel {
+
+	// Chunk size, power of two below Integer.MAX_VALUE
+	private final static int CHUNK_SHIFT = 30;
+	private final static long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+
+	private final Path path;
+	private final long size;
+	private volatile MappedByteBuffer[] chunks;
+	private long position = 0;
+
+	public MappedFileChannel(Path path) throws IOException {
+		this.path = path;
+		try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+			size = fileChannel.size();
+			chunks = new MappedByteBuffer[(int) ((size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+			for (int i = 0; i < chunks.length; i++) {
+				long offset = (long) i << CHUNK_SHIFT;
+				chunks[i] = fileChannel.map(MapMode.READ_ONLY, offset, Math.min(CHUNK_SIZE, size - offset));
+			}
+		}
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		int count = read(dst, position);
+		if (count > 0) position += count;
+		return count;
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		MappedByteBuffer[] chunks = this.chunks;
+		if (chunks == null) throw new ClosedChannelException();
+		if (position < 0) throw new IllegalArgumentException("Negative position"); //$NON-NLS-1$
+		if (position >= size) return -1;
+		int count = 0;
+		while (dst.hasRemaining() && position < size) {
+			// Duplicate keeps concurrent positional reads independent
+			ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)].duplicate();
+			chunk.position((int) (position & (CHUNK_SIZE - 1)));
+			if (chunk.remaining() > dst.remaining()) chunk.limit(chunk.position() + dst.remaining());
+			int length = chunk.remaining();
+			dst.put(chunk);
+			position += length;
+			count += length;
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		long count = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int n = read(dsts[i]);
+			if (n < 0) return count > 0 ? count : -1;
+			count += n;
+			if (dsts[i].hasRemaining()) break;
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		if (chunks == null) throw new ClosedChannelException();
+		return position;
+	}
+
+	@Override
+	public synchronized FileChannel position(long newPosition) throws IOException {
+		if (chunks == null) throw new ClosedChannelException();
+		if (newPosition < 0) throw new IllegalArgumentException("Negative position"); //$NON-NLS-1$
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		if (chunks == null) throw new ClosedChannelException();
+		return size;
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 1 << 16));
+		long transferred = 0;
+		while (transferred < count) {
+			buffer.clear();
+			if (count - transferred < buffer.capacity()) buffer.limit((int) (count - transferred));
+			int n = read(buffer, position + transferred);
+			if (n <= 0) break;
+			buffer.flip();
+			while (buffer.hasRemaining()) target.write(buffer);
+			transferred += n;
+		}
+		return transferred;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		throw new UnsupportedOperationException("Already mapped: " + path); //$NON-NLS-1$
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		throw new UnsupportedOperationException("Locking not supported: " + path); //$NON-NLS-1$
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		throw new UnsupportedOperationException("Locking not supported: " + path); //$NON-NLS-1$
+	}
+
+	/*
+	 * Mapped memory is unmapped once chunks are garbage collected
+	 */
+	@Override
+	protected void implCloseChannel() throws IOException {
+		chunks = null;
+	}
+}
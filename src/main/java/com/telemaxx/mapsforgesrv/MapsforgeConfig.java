@@ -15,6 +15,7 @@ import static java.nio.file.StandardWatchEventKinds.*;
 import java.nio.file.WatchService;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.imageio.ImageIO;
@@ -26,6 +27,7 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.mapsforge.core.model.BoundingBox;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,10 +42,26 @@ public class MapsforgeConfig extends PropertiesParser{
 	private String configDirectory = null;
 	private String taskDirectory = null;
 	private String requestLogFormat = null;
+	private File tileCacheFolder = null;
+	private long tileCacheSize;
+	private long tileCacheMemory;
+	private int tileCacheRevalidate;
+	private long mapDataCacheMemory;
+	private int mapFileHandles;
+	private int renderThreads;
+	private int renderQueue;
+	private String seedTask = null;
+	private int seedZoomMin;
+	private int seedZoomMax;
+	private BoundingBox seedBoundingBox = null;
+	private int seedWorkers;
+	private File seedOutput = null;
 
 	public static BufferedImage BI_NOCONTENT;
 	public static Path worldMapPath;
 
+	private final static int MAX_SEED_ZOOM = 24;
+
 	private final static String taskFileNameRegex = "^[a-zA-Z0-9]+([_+-.]?[a-zA-Z0-9]+)*.properties$"; //$NON-NLS-1$
 
 	private final static Logger logger = LoggerFactory.getLogger(MapsforgeConfig.class);
@@ -82,6 +100,26 @@ public class MapsforgeConfig extends PropertiesParser{
 				.longOpt("help") //$NON-NLS-1$
 				.desc("Print this help text and exit") //$NON-NLS-1$
 				.required(false).hasArg(false).build());
+		options.addOption(Option.builder("s") //$NON-NLS-1$
+				.longOpt("seed") //$NON-NLS-1$
+				.desc("Render tiles of task into tile cache or output folder without starting server and exit") //$NON-NLS-1$
+				.required(false).hasArg(true).argName("task").build()); //$NON-NLS-1$
+		options.addOption(Option.builder("z") //$NON-NLS-1$
+				.longOpt("zoom") //$NON-NLS-1$
+				.desc("Zoom level or zoom level range 'min-max' to seed") //$NON-NLS-1$
+				.required(false).hasArg(true).argName("zoom").build()); //$NON-NLS-1$
+		options.addOption(Option.builder("b") //$NON-NLS-1$
+				.longOpt("bbox") //$NON-NLS-1$
+				.desc("Bounding box 'minLat,minLon,maxLat,maxLon' to seed (default: extent of task's map files)") //$NON-NLS-1$
+				.required(false).hasArg(true).argName("bbox").build()); //$NON-NLS-1$
+		options.addOption(Option.builder("w") //$NON-NLS-1$
+				.longOpt("workers") //$NON-NLS-1$
+				.desc("Number of tiles to seed in parallel (default: number of processors)") //$NON-NLS-1$
+				.required(false).hasArg(true).argName("workers").build()); //$NON-NLS-1$
+		options.addOption(Option.builder("o") //$NON-NLS-1$
+				.longOpt("output") //$NON-NLS-1$
+				.desc("Output folder to write seeded tiles to as <z>/<x>/<y>.<png|webp> or MBTiles file *.mbtiles (default: tile cache)") //$NON-NLS-1$
+				.required(false).hasArg(true).argName("output").build()); //$NON-NLS-1$
 		CommandLineParser parser = new DefaultParser();
 		HelpFormatter formatter = new HelpFormatter();
 		formatter.setWidth(132);
@@ -120,6 +158,58 @@ public class MapsforgeConfig extends PropertiesParser{
 			logger.error("Config directory not set with -c: exiting"); //$NON-NLS-1$
 			System.exit(1);
 		}
+		if (configCmd.hasOption("seed")) initSeedOptions(); //$NON-NLS-1$
+	}
+
+	private void initSeedOptions() {
+		seedTask = configCmd.getOptionValue("seed").trim(); //$NON-NLS-1$
+		String zoom = configCmd.getOptionValue("zoom"); //$NON-NLS-1$
+		Matcher zoomMatcher = Pattern.compile("(\\d+)(?:-(\\d+))?").matcher(zoom == null ? "" : zoom.trim()); //$NON-NLS-1$ //$NON-NLS-2$
+		if (!zoomMatcher.matches()) {
+			logger.error("Zoom level range not set with -z 'min-max': exiting"); //$NON-NLS-1$
+			System.exit(1);
+		}
+		seedZoomMin = Integer.parseInt(zoomMatcher.group(1));
+		seedZoomMax = zoomMatcher.group(2) != null ? Integer.parseInt(zoomMatcher.group(2)) : seedZoomMin;
+		if (seedZoomMin > seedZoomMax || seedZoomMax > MAX_SEED_ZOOM) {
+			logger.error("Zoom level range '" + zoom + "' set with -z is invalid: exiting"); //$NON-NLS-1$
+			System.exit(1);
+		}
+		String bbox = configCmd.getOptionValue("bbox"); //$NON-NLS-1$
+		if (bbox != null) {
+			try {
+				seedBoundingBox = BoundingBox.fromString(bbox.trim());
+			} catch (IllegalArgumentException e) {
+				logger.error("Bounding box '" + bbox + "' set with -b is invalid: " + e.getMessage() + ": exiting"); //$NON-NLS-1$
+				System.exit(1);
+			}
+		}
+		seedWorkers = Runtime.getRuntime().availableProcessors();
+		String workers = configCmd.getOptionValue("workers"); //$NON-NLS-1$
+		if (workers != null) {
+			try {
+				seedWorkers = Integer.parseInt(workers.trim());
+			} catch (NumberFormatException e) {
+				seedWorkers = 0;
+			}
+			if (seedWorkers < 1) {
+				logger.error("Number of workers '" + workers + "' set with -w is invalid: exiting"); //$NON-NLS-1$
+				System.exit(1);
+			}
+		}
+		String output = configCmd.getOptionValue("output"); //$NON-NLS-1$
+		if (output != null) {
+			seedOutput = new File(output.trim()).getAbsoluteFile();
+			if (seedOutput.getName().endsWith(MBTILES_EXTENSION)) {
+				if (!seedOutput.getParentFile().isDirectory() || seedOutput.isDirectory()) {
+					logger.error("Output '" + output + "' set with -o is not a valid MBTiles file path: exiting"); //$NON-NLS-1$
+					System.exit(1);
+				}
+			} else if (!seedOutput.isDirectory()) {
+				logger.error("Output '" + output + "' set with -o is not a directory: exiting"); //$NON-NLS-1$
+				System.exit(1);
+			}
+		}
 	}
 
 	/*
@@ -134,6 +224,14 @@ public class MapsforgeConfig extends PropertiesParser{
 		acceptTerminate = parseHasOption("terminate", "Accept terminate request");
 		//requestLogFormat = parseString("%{client}a - %u %t '%r' %s %O '%{Referer}i' '%{User-Agent}i' '%C'", "requestlog-format", null, "Request log format"); //$NON-NLS-1$ //$NON-NLS-2$
 		requestLogFormat = parseString("From %{client}a Get %U%q Status %s Size %O bytes Time %{ms}T ms", "requestlog-format", null, "Request log format"); //$NON-NLS-1$ //$NON-NLS-2$
+		tileCacheFolder = parseFile("tilecache-folder", FOLDER, false, "Tile cache", "undefined"); //$NON-NLS-1$ //$NON-NLS-2$
+		tileCacheSize = (long) parseNumber(DEFAULT_TILECACHE_SIZE, "tilecache-size", 1, null, "Tile cache size [MB]",false); //$NON-NLS-1$ //$NON-NLS-2$
+		tileCacheMemory = (long) parseNumber(DEFAULT_TILECACHE_MEMORY, "tilecache-memory", 0, null, "Tile cache memory [MB]",false); //$NON-NLS-1$ //$NON-NLS-2$
+		tileCacheRevalidate = (int) parseNumber(DEFAULT_TILECACHE_REVALIDATE, "tilecache-revalidate", 0, null, "Tile cache revalidate [tiles/s]",false); //$NON-NLS-1$ //$NON-NLS-2$
+		mapDataCacheMemory = (long) parseNumber(DEFAULT_MAPDATACACHE_MEMORY, "mapdatacache-memory", 0, null, "Map data cache memory [MB]",false); //$NON-NLS-1$ //$NON-NLS-2$
+		mapFileHandles = (int) parseNumber(DEFAULT_MAPFILE_HANDLES, "mapfile-handles", 1, null, "Lazy map file handles",false); //$NON-NLS-1$ //$NON-NLS-2$
+		renderThreads = (int) parseNumber(DEFAULT_RENDER_THREADS, "render-threads", 1, null, "Render threads",false); //$NON-NLS-1$ //$NON-NLS-2$
+		renderQueue = (int) parseNumber(DEFAULT_RENDER_QUEUE, "render-queue", 0, null, "Render queue",false); //$NON-NLS-1$ //$NON-NLS-2$
 		if (parseGetError()) {
 			logger.error("Properties parsing error(s) - exiting"); //$NON-NLS-1$
 			System.exit(1);
@@ -184,45 +282,10 @@ public class MapsforgeConfig extends PropertiesParser{
 							Path pathName = (Path) event.context();
 							String fileName = pathName.toString();
 							if (!Pattern.matches(taskFileNameRegex,fileName)) continue;
-							if (MapsforgeSrv.getServer() == null) continue; // Config early called before server start
-							MapsforgeHandler mapsforgeHandler = (MapsforgeHandler) MapsforgeSrv.getServer().getHandler();
-							Map<String, MapsforgeTaskHandler> tasksHandler = mapsforgeHandler.getTasksHandler();
-							String taskName = fileName.replaceFirst("[.][^.]+$", "");
-							boolean taskExists = tasksHandler.get(taskName) != null;
-							if (event.kind() == ENTRY_CREATE) {
-								logger.info("New task properties created: " + fileName);
-								// If task does not exist, create new task config and task handler
-								if (!taskExists) {
-									File taskFile = new File(taskDirectory,fileName);
-									MapsforgeTaskConfig mapsforgeTaskConfig = new MapsforgeTaskConfig(taskName, taskFile);
-									if (mapsforgeTaskConfig.getCheckSum() != null) {
-										tasksConfig.put(taskName, mapsforgeTaskConfig);
-										tasksHandler.put(taskName, new MapsforgeTaskHandler(mapsforgeHandler, tasksConfig.get(taskName), taskName));
-									}
-								}
-							} else if (event.kind() == ENTRY_DELETE) {
-								logger.info("Existing task properties deleted: " + fileName);
-								// If task does exist, delete task handler and config
-								if (taskExists) {
-									tasksHandler.remove(taskName);
-									tasksConfig.remove(taskName);
-								}
-							} else if (event.kind() == ENTRY_MODIFY) {
-								// If task does exist and properties have been changed, delete task handler and config
-								if (taskExists) {
-									File taskFile = new File(taskDirectory,fileName);
-									String newCheckSum = checkSum(Files.readAllBytes(taskFile.toPath()));
-									String oldCheckSum = tasksConfig.get(taskName).getCheckSum();
-									if (!newCheckSum.equals(oldCheckSum)) {
-										logger.info("Existing task properties modified: " + fileName);
-										tasksConfig.remove(taskName);
-										MapsforgeTaskConfig mapsforgeTaskConfig = new MapsforgeTaskConfig(taskName, taskFile);
-										if (mapsforgeTaskConfig.getCheckSum() != null) {
-											tasksConfig.put(taskName, mapsforgeTaskConfig);
-											tasksHandler.put(taskName, new MapsforgeTaskHandler(mapsforgeHandler, tasksConfig.get(taskName), taskName));
-										}
-									}
-								}
+							try {
+								handleTaskFileEvent(event.kind(), fileName);
+							} catch (Exception e) {
+								logger.warn("Task properties " + fileName + " not handled: " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
 							}
 						}
 						poll = key.reset();
@@ -235,6 +298,51 @@ public class MapsforgeConfig extends PropertiesParser{
 		watchConfigThread.start();
 	}
 
+	/*
+	 * Create, replace or remove task on change of its task properties file
+	 */
+	private void handleTaskFileEvent(WatchEvent.Kind<?> kind, String fileName) throws Exception {
+		if (MapsforgeSrv.getServer() == null) return; // Config early called before server start
+		MapsforgeHandler mapsforgeHandler = (MapsforgeHandler) MapsforgeSrv.getServer().getHandler();
+		String taskName = fileName.replaceFirst("[.][^.]+$", "");
+		// Task config is known as soon as task start is requested, task handler only once started
+		boolean taskExists = tasksConfig.get(taskName) != null;
+		// Event of file deleted meanwhile is followed by its delete event
+		if (kind != ENTRY_DELETE && !new File(taskDirectory,fileName).isFile()) return;
+		if (kind == ENTRY_DELETE) {
+			logger.info("Existing task properties deleted: " + fileName);
+			// If task does exist, delete task config, task handler is deleted after pending starts
+			if (taskExists) {
+				tasksConfig.remove(taskName);
+				mapsforgeHandler.removeTask(taskName);
+			}
+		} else if (!taskExists) {
+			logger.info("New task properties created: " + fileName);
+			// If task does not exist, create new task config and task handler
+			File taskFile = new File(taskDirectory,fileName);
+			MapsforgeTaskConfig mapsforgeTaskConfig = new MapsforgeTaskConfig(taskName, taskFile);
+			if (mapsforgeTaskConfig.getCheckSum() != null) {
+				tasksConfig.put(taskName, mapsforgeTaskConfig);
+				mapsforgeHandler.startTask(taskName, mapsforgeTaskConfig);
+			}
+		} else {
+			// If properties have been changed, e.g. written after file was created, replace task handler
+			File taskFile = new File(taskDirectory,fileName);
+			String newCheckSum = checkSum(Files.readAllBytes(taskFile.toPath()));
+			String oldCheckSum = tasksConfig.get(taskName).getCheckSum();
+			if (!newCheckSum.equals(oldCheckSum)) {
+				logger.info("Existing task properties modified: " + fileName);
+				// Task keeps running with its previous config if modified properties can't be read
+				MapsforgeTaskConfig mapsforgeTaskConfig = new MapsforgeTaskConfig(taskName, taskFile);
+				if (mapsforgeTaskConfig.getCheckSum() != null) {
+					tasksConfig.put(taskName, mapsforgeTaskConfig);
+					// New task handler is created first, so that it can reuse resources of old task handler
+					mapsforgeHandler.startTask(taskName, mapsforgeTaskConfig);
+				}
+			}
+		}
+	}
+
 	/*
 	 * GETTERS
 	 */
@@ -259,6 +367,62 @@ public class MapsforgeConfig extends PropertiesParser{
 		return requestLogFormat;
 	}
 
+	public File getTileCacheFolder() {
+		return tileCacheFolder;
+	}
+
+	public long getTileCacheSize() {
+		return tileCacheSize;
+	}
+
+	public long getTileCacheMemory() {
+		return tileCacheMemory;
+	}
+
+	public int getTileCacheRevalidate() {
+		return tileCacheRevalidate;
+	}
+
+	public long getMapDataCacheMemory() {
+		return mapDataCacheMemory;
+	}
+
+	public int getMapFileHandles() {
+		return mapFileHandles;
+	}
+
+	public int getRenderThreads() {
+		return renderThreads;
+	}
+
+	public int getRenderQueue() {
+		return renderQueue;
+	}
+
+	public String getSeedTask() {
+		return seedTask;
+	}
+
+	public int getSeedZoomMin() {
+		return seedZoomMin;
+	}
+
+	public int getSeedZoomMax() {
+		return seedZoomMax;
+	}
+
+	public BoundingBox getSeedBoundingBox() {
+		return seedBoundingBox;
+	}
+
+	public int getSeedWorkers() {
+		return seedWorkers;
+	}
+
+	public File getSeedOutput() {
+		return seedOutput;
+	}
+
 	public Map<String, MapsforgeTaskConfig> getTasksConfig() {
 		return tasksConfig;
 	}
@@ -19,11 +19,27 @@
 package com.telemaxx.mapsforgesrv;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.eclipse.jetty.server.Request;
@@ -33,7 +49,10 @@ import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
@@ -42,25 +61,125 @@ public class MapsforgeHandler extends AbstractHandler {
 	final static Logger logger = LoggerFactory.getLogger(MapsforgeHandler.class);
 
 	private final TreeSet<String> KNOWN_PARAMETER_NAMES = new TreeSet<>(Arrays.asList(
-			new String[] { "textScale", "userScale", "transparent", "tileRenderSize", "hillshading", "task" })); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$
+			new String[] { "textScale", "userScale", "transparent", "tileRenderSize", "hillshading", "task", "priority" })); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$
 
 	protected final GraphicFactory graphicFactory = AwtGraphicFactory.INSTANCE;
 
-	private Map<String, MapsforgeTaskHandler> tasksHandler;
+	private final Map<String, MapsforgeTaskHandler> tasksHandler = new ConcurrentHashMap<String, MapsforgeTaskHandler>();
+	// Tasks being started for the first time
+	private final Set<String> startingTasks = ConcurrentHashMap.newKeySet();
+	private final ExecutorService taskStarter;
+	// task name -> last start or removal of task not yet done, later ones run after it
+	private final Map<String, CompletableFuture<Void>> pendingTaskActions = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+	// Tiles are rendered by own threads, connections are handled by jetty's threads
+	private final RenderScheduler renderScheduler;
+	private final CompletableFuture<Void> tasksStarted;
 	private MapsforgeConfig mapsforgeConfig;
+	private MapsforgeTileCache mapsforgeTileCache = null;
+	private TileRevalidator tileRevalidator = null;
+	private final RenderThemeCache renderThemeCache = new RenderThemeCache();
+	private MapDataCache mapDataCache = null;
+	private final MapFileRegistry mapFileRegistry;
 
 	private static boolean stopped = false;
 
+	// Seconds to wait before requesting tile of starting task again
+	private final static int RETRY_AFTER_STARTING = 5;
+	// Seconds to wait before requesting tile again after render queue was full
+	private final static int RETRY_AFTER_OVERLOAD = 1;
+
 	public MapsforgeHandler(MapsforgeConfig mapsforgeConfig) throws Exception {
+		this(mapsforgeConfig, mapsforgeConfig.getTasksConfig().keySet());
+	}
+
+	/*
+	 * Start given tasks only
+	 * Tasks are started concurrently in background, see awaitTasksStarted
+	 */
+	public MapsforgeHandler(MapsforgeConfig mapsforgeConfig, Collection<String> tasks) throws Exception {
 		super();
 
 		this.mapsforgeConfig = mapsforgeConfig;
 
-		tasksHandler = new HashMap<String, MapsforgeTaskHandler>();
-		for(String task : mapsforgeConfig.getTasksConfig().keySet()) {
-			MapsforgeTaskHandler mapsforgeTaskHandler = new MapsforgeTaskHandler(this, mapsforgeConfig.getTaskConfig(task), task);
-			tasksHandler.put(task, mapsforgeTaskHandler);
+		if (mapsforgeConfig.getTileCacheFolder() != null || mapsforgeConfig.getTileCacheMemory() > 0) {
+			mapsforgeTileCache = new MapsforgeTileCache(mapsforgeConfig.getTileCacheFolder(),
+					mapsforgeConfig.getTileCacheSize() << 20, mapsforgeConfig.getTileCacheMemory() << 20,
+					mapsforgeConfig.getTileCacheRevalidate() > 0);
+			if (mapsforgeConfig.getTileCacheRevalidate() > 0) {
+				tileRevalidator = new TileRevalidator(this, mapsforgeConfig.getTileCacheRevalidate());
+				logger.info("Stale tiles re-rendered at up to " + mapsforgeConfig.getTileCacheRevalidate() + " tiles per second"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+
+		if (mapsforgeConfig.getMapDataCacheMemory() > 0) {
+			mapDataCache = new MapDataCache(mapsforgeConfig.getMapDataCacheMemory() << 20);
+			logger.info("Map data cache memory limited to " + mapsforgeConfig.getMapDataCacheMemory() + " MB"); //$NON-NLS-1$
+		}
+		mapFileRegistry = new MapFileRegistry(mapDataCache, mapsforgeConfig.getMapFileHandles());
+
+		AtomicInteger threadNumber = new AtomicInteger();
+		taskStarter = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+			Thread thread = new Thread(null, runnable, "TaskStarter-" + threadNumber.incrementAndGet()); //$NON-NLS-1$
+			thread.setDaemon(true);
+			return thread;
+		});
+		renderScheduler = new RenderScheduler(mapsforgeConfig.getRenderThreads(), mapsforgeConfig.getRenderQueue());
+		logger.info("Tiles rendered by " + mapsforgeConfig.getRenderThreads() + " threads, up to " + mapsforgeConfig.getRenderQueue() //$NON-NLS-1$
+				+ " renders waiting"); //$NON-NLS-1$
+
+		long startTime = System.currentTimeMillis();
+		List<CompletableFuture<Void>> taskStarts = new ArrayList<CompletableFuture<Void>>();
+		for(String task : tasks) {
+			taskStarts.add(startTask(task, mapsforgeConfig.getTaskConfig(task)));
 		}
+		tasksStarted = CompletableFuture.allOf(taskStarts.toArray(CompletableFuture<?>[]::new)).thenRun(() ->
+			logger.info("All " + taskStarts.size() + " tasks started in " + (System.currentTimeMillis() - startTime) + " ms")); //$NON-NLS-1$
+	}
+
+	/*
+	 * Start task in background, then replace task handler of same name
+	 * Until then, an existing task handler keeps on handling requests
+	 * and requests for new tasks are answered with HTTP status 503
+	 * Starts and removals of same task run one after another in order of call
+	 */
+	public CompletableFuture<Void> startTask(String task, MapsforgeTaskConfig mapsforgeTaskConfig) {
+		if (!tasksHandler.containsKey(task)) startingTasks.add(task);
+		return runTaskAction(task, () -> {
+			try {
+				MapsforgeTaskHandler oldTaskHandler = tasksHandler.put(task, new MapsforgeTaskHandler(this, mapsforgeTaskConfig, task));
+				if (oldTaskHandler != null) oldTaskHandler.destroy();
+			} catch (Exception e) {
+				logger.error("Task '" + task + "' failed to start", e); //$NON-NLS-1$
+			} finally {
+				startingTasks.remove(task);
+			}
+		});
+	}
+
+	/*
+	 * Remove task and drop its cached tiles once pending starts of task are done
+	 */
+	public CompletableFuture<Void> removeTask(String task) {
+		return runTaskAction(task, () -> {
+			MapsforgeTaskHandler oldTaskHandler = tasksHandler.remove(task);
+			if (oldTaskHandler != null) oldTaskHandler.destroy();
+			if (mapsforgeTileCache != null) mapsforgeTileCache.removeTask(task);
+		});
+	}
+
+	/*
+	 * Run action on task in background after previous actions on same task
+	 * Actions on different tasks run concurrently
+	 */
+	private CompletableFuture<Void> runTaskAction(String task, Runnable action) {
+		CompletableFuture<Void> future = pendingTaskActions.compute(task, (key, pending) ->
+			pending == null ? CompletableFuture.runAsync(action, taskStarter) : pending.thenRunAsync(action, taskStarter));
+		future.whenComplete((result, t) -> pendingTaskActions.remove(task, future));
+		return future;
+	}
+
+	public void awaitTasksStarted() {
+		tasksStarted.join();
 	}
 
 	@Override
@@ -108,6 +227,17 @@ public class MapsforgeHandler extends AbstractHandler {
 				return;
 			}
 
+			if (path.equals("/metrics")) { //$NON-NLS-1$
+				byte[] metrics = getMetrics().getBytes(StandardCharsets.UTF_8);
+				response.setHeader("Cache-Control", "no-cache"); //$NON-NLS-1$ //$NON-NLS-2$
+				response.setContentType("text/plain; version=0.0.4; charset=utf-8"); //$NON-NLS-1$
+				response.setContentLength(metrics.length);
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.getOutputStream().write(metrics);
+				response.flushBuffer();
+				return;
+			}
+
 			Enumeration<String> paramNames = request.getParameterNames();
 			while (paramNames.hasMoreElements()) {
 				String name = paramNames.nextElement();
@@ -120,21 +250,100 @@ public class MapsforgeHandler extends AbstractHandler {
 			String key = request.getParameter("task");
 			if(key == null || key.isEmpty()) {
 				key = "default";
-			} else {
-				if(tasksHandler.get(key) == null)
-					throw new ServletException("Unsupported task: " + key); //$NON-NLS-1$
 			}
-			tasksHandler.get(key).handle(target, baseRequest, request, response);
-		} catch (Exception e) {
-			if (stopped) return;
-			String extmsg = ExceptionUtils.getRootCauseMessage(e);
+			MapsforgeTaskHandler mapsforgeTaskHandler = tasksHandler.get(key);
+			if (mapsforgeTaskHandler == null) {
+				if (startingTasks.contains(key)) {
+					response.setHeader("Retry-After", Integer.toString(RETRY_AFTER_STARTING)); //$NON-NLS-1$
+					response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Task " + key + " is starting"); //$NON-NLS-1$
+					return;
+				}
+				throw new ServletException("Unsupported task: " + key); //$NON-NLS-1$
+			}
+
+			// Request is suspended while tile is rendered and written, releasing jetty's thread
+			AsyncContext asyncContext = request.startAsync();
+			asyncContext.setTimeout(0);
+			ClientConnection clientConnection = new ClientConnection(baseRequest);
+			asyncContext.addListener(clientConnection);
+			CompletableFuture<byte[]> tileFuture;
 			try {
-				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, extmsg);
-			} catch (IOException e1) {
-				response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			} catch (IllegalStateException e2) {
-				logger.warn(request.getRequestURI()+"?"+request.getQueryString()+" : "+e2.getMessage()); //$NON-NLS-1$
+				tileFuture = mapsforgeTaskHandler.handle(target, baseRequest, request, response, clientConnection);
+			} catch (Exception e) {
+				tileFuture = CompletableFuture.failedFuture(e);
 			}
+			tileFuture.whenComplete((tileBytes, throwable) -> {
+				// Request of client gone is completed without response
+				if (clientConnection.isCompleted()) return;
+				try {
+					if (throwable instanceof CompletionException && throwable.getCause() != null) throwable = throwable.getCause();
+					if (clientConnection.isGoneBeforeResponse() || throwable instanceof CancellationException) {
+						logger.debug(request.getRequestURI() + " : client has gone"); //$NON-NLS-1$
+					} else if (throwable instanceof RejectedExecutionException) {
+						// Overload is answered at once, clients may retry later
+						response.setHeader("Retry-After", Integer.toString(RETRY_AFTER_OVERLOAD)); //$NON-NLS-1$
+						response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, throwable.getMessage());
+					} else if (throwable != null) {
+						sendError(request, response, throwable);
+					} else if (tileBytes != null) {
+						TileRenderKey tileRenderKey = (TileRenderKey) request.getAttribute(MapsforgeTaskHandler.TILE_RENDER_KEY_ATTRIBUTE);
+						long writeStart = System.nanoTime();
+						writeAsync(asyncContext, response, tileBytes, () -> {
+							if (tileRenderKey != null) mapsforgeTaskHandler.getRenderMetrics().record(RenderMetrics.STAGE_WRITE,
+									tileRenderKey.getZ(), tileRenderKey.getEngine(), System.nanoTime() - writeStart);
+						});
+						return;
+					}
+				} catch (Exception e) {
+					sendError(request, response, e);
+				}
+				asyncContext.complete();
+			});
+		} catch (Exception e) {
+			sendError(request, response, e);
+		}
+	}
+
+	/*
+	 * Write response body without blocking render thread, async context is completed when written
+	 * Write listener is called back by jetty's threads whenever slow clients are ready to receive more
+	 * Runnable written is run once body is written completely
+	 */
+	private void writeAsync(AsyncContext asyncContext, HttpServletResponse response, byte[] body, Runnable written) throws IOException {
+		ServletOutputStream outputStream = response.getOutputStream();
+		outputStream.setWriteListener(new WriteListener() {
+			private boolean writing = false;
+
+			@Override
+			public void onWritePossible() throws IOException {
+				while (outputStream.isReady()) {
+					if (writing) {
+						written.run();
+						asyncContext.complete();
+						return;
+					}
+					writing = true;
+					outputStream.write(body);
+				}
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				logger.debug("Writing tile failed: " + t.getMessage()); //$NON-NLS-1$
+				asyncContext.complete();
+			}
+		});
+	}
+
+	private void sendError(HttpServletRequest request, HttpServletResponse response, Throwable e) {
+		if (stopped) return;
+		String extmsg = ExceptionUtils.getRootCauseMessage(e);
+		try {
+			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, extmsg);
+		} catch (IOException e1) {
+			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		} catch (IllegalStateException e2) {
+			logger.warn(request.getRequestURI()+"?"+request.getQueryString()+" : "+e2.getMessage()); //$NON-NLS-1$
 		}
 	}
 
@@ -142,6 +351,94 @@ public class MapsforgeHandler extends AbstractHandler {
 		return graphicFactory;
 	}
 
+	/*
+	 * Server and task metrics in Prometheus text exposition format
+	 * Cache hit ratios are to be derived from hits and misses counters
+	 */
+	private String getMetrics() {
+		StringBuilder builder = new StringBuilder();
+		String name = "mapsforgesrv_stage_seconds"; //$NON-NLS-1$
+		appendHeader(builder, name, "histogram", "Time spent per stage of tile requests"); //$NON-NLS-1$ //$NON-NLS-2$
+		Map<String, MapsforgeTaskHandler> tasks = new TreeMap<String, MapsforgeTaskHandler>(tasksHandler);
+		for (Map.Entry<String, MapsforgeTaskHandler> task : tasks.entrySet())
+			task.getValue().getRenderMetrics().write(builder, name, task.getKey());
+		name = "mapsforgesrv_coalesced_renders_total"; //$NON-NLS-1$
+		appendHeader(builder, name, "counter", "Tile requests served by waiting for render of same tile"); //$NON-NLS-1$ //$NON-NLS-2$
+		for (Map.Entry<String, MapsforgeTaskHandler> task : tasks.entrySet())
+			builder.append(name).append("{task=\"").append(task.getKey()).append("\"} ").append(task.getValue().getCoalescedRenders()).append('\n'); //$NON-NLS-1$ //$NON-NLS-2$
+
+		name = "mapsforgesrv_render_queue_depth"; //$NON-NLS-1$
+		appendHeader(builder, name, "gauge", "Tile renders waiting for render thread"); //$NON-NLS-1$ //$NON-NLS-2$
+		for (int priority = 0; priority < RenderScheduler.PRIORITIES.length; priority++)
+			builder.append(name).append("{priority=\"").append(RenderScheduler.PRIORITIES[priority]).append("\"} ").append(renderScheduler.getQueued(priority)).append('\n'); //$NON-NLS-1$ //$NON-NLS-2$
+		appendMetric(builder, "mapsforgesrv_render_threads_active", "gauge", "Render threads busy", renderScheduler.getRunning()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		appendMetric(builder, "mapsforgesrv_render_threads", "gauge", "Render threads", renderScheduler.getThreads()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		appendMetric(builder, "mapsforgesrv_renders_rejected_total", "counter", "Tile renders rejected by full render queue", renderScheduler.getRejected()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		name = "mapsforgesrv_renders_cancelled_total"; //$NON-NLS-1$
+		appendHeader(builder, name, "counter", "Tile renders cancelled since all clients waiting for them have gone"); //$NON-NLS-1$ //$NON-NLS-2$
+		for (Map.Entry<String, MapsforgeTaskHandler> task : tasks.entrySet()) {
+			RenderMetrics renderMetrics = task.getValue().getRenderMetrics();
+			builder.append(name).append("{task=\"").append(task.getKey()).append("\",state=\"waiting\"} ").append(renderMetrics.getCancelledWaiting()).append('\n'); //$NON-NLS-1$ //$NON-NLS-2$
+			builder.append(name).append("{task=\"").append(task.getKey()).append("\",state=\"rendering\"} ").append(renderMetrics.getCancelledRendering()).append('\n'); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		name = "mapsforgesrv_render_seconds_saved_total"; //$NON-NLS-1$
+		appendHeader(builder, name, "counter", "Render time saved by cancelled renders, estimated by mean render time"); //$NON-NLS-1$ //$NON-NLS-2$
+		for (Map.Entry<String, MapsforgeTaskHandler> task : tasks.entrySet())
+			builder.append(name).append("{task=\"").append(task.getKey()).append("\"} ") //$NON-NLS-1$ //$NON-NLS-2$
+					.append(String.format(Locale.ROOT, "%.6f", task.getValue().getRenderMetrics().getSavedSeconds())).append('\n'); //$NON-NLS-1$
+
+		if (mapsforgeTileCache != null && mapsforgeTileCache.getMemoryCache() != null) {
+			TileMemoryCache memoryCache = mapsforgeTileCache.getMemoryCache();
+			appendMetric(builder, "mapsforgesrv_tile_memory_cache_hits_total", "counter", "Tile memory cache hits", memoryCache.getHits()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_tile_memory_cache_misses_total", "counter", "Tile memory cache misses", memoryCache.getMisses()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_tile_memory_cache_evictions_total", "counter", "Tile memory cache evictions", memoryCache.getEvictions()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_tile_memory_cache_bytes", "gauge", "Tile memory cache size", memoryCache.getSize()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_tile_memory_cache_tiles", "gauge", "Tiles in memory cache", memoryCache.getCount()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+		if (mapsforgeTileCache != null && mapsforgeTileCache.getDiskCache() != null) {
+			TileDiskCache diskCache = mapsforgeTileCache.getDiskCache();
+			appendMetric(builder, "mapsforgesrv_tile_disk_cache_hits_total", "counter", "Tile disk cache hits", diskCache.getHits()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_tile_disk_cache_misses_total", "counter", "Tile disk cache misses", diskCache.getMisses()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_tile_disk_cache_bytes", "gauge", "Tile disk cache size", diskCache.getSize()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_tile_disk_cache_tiles", "gauge", "Tiles in disk cache", diskCache.getCount()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+		if (tileRevalidator != null) {
+			appendMetric(builder, "mapsforgesrv_stale_tiles_served_total", "counter", "Stale tiles served while waiting for re-rendering", tileRevalidator.getServed()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_stale_tiles_revalidated_total", "counter", "Stale tiles re-rendered in background", tileRevalidator.getRevalidated()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_stale_tiles_pending", "gauge", "Stale tiles served and waiting for re-rendering", tileRevalidator.getPending()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+		if (mapDataCache != null) {
+			appendMetric(builder, "mapsforgesrv_map_data_cache_hits_total", "counter", "Map data cache hits", mapDataCache.getHits()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_map_data_cache_misses_total", "counter", "Map data cache misses", mapDataCache.getMisses()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_map_data_cache_evictions_total", "counter", "Map data cache evictions", mapDataCache.getEvictions()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_map_data_cache_bytes", "gauge", "Map data cache size", mapDataCache.getSize()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			appendMetric(builder, "mapsforgesrv_map_data_cache_blocks", "gauge", "Map file blocks in map data cache", mapDataCache.getCount()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+		appendMetric(builder, "mapsforgesrv_render_theme_cache_hits_total", "counter", "Render theme cache hits", renderThemeCache.getHits()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		appendMetric(builder, "mapsforgesrv_render_theme_cache_misses_total", "counter", "Render theme cache misses", renderThemeCache.getMisses()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		appendMetric(builder, "mapsforgesrv_render_theme_cache_themes", "gauge", "Compiled render themes", renderThemeCache.getCount()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		LazyFileChannel.Pool lazyFileChannelPool = mapFileRegistry.getLazyFileChannelPool();
+		appendMetric(builder, "mapsforgesrv_lazy_mapfiles_open", "gauge", "Open map files of lazy map file access", lazyFileChannelPool.getOpenFiles()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		appendMetric(builder, "mapsforgesrv_lazy_mapfile_opens_total", "counter", "Map file opens of lazy map file access", lazyFileChannelPool.getOpens()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		appendMetric(builder, "mapsforgesrv_lazy_mapfile_evictions_total", "counter", "Idle map files closed by lazy map file access", lazyFileChannelPool.getEvictions()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		appendMetric(builder, "jvm_memory_heap_used_bytes", "gauge", "Used heap memory", heap.getUsed()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		appendMetric(builder, "jvm_memory_heap_committed_bytes", "gauge", "Committed heap memory", heap.getCommitted()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		appendMetric(builder, "jvm_memory_heap_max_bytes", "gauge", "Maximum heap memory", heap.getMax()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		return builder.toString();
+	}
+
+	private static void appendHeader(StringBuilder builder, String name, String type, String help) {
+		builder.append("# HELP ").append(name).append(' ').append(help).append('\n'); //$NON-NLS-1$
+		builder.append("# TYPE ").append(name).append(' ').append(type).append('\n'); //$NON-NLS-1$
+	}
+
+	private static void appendMetric(StringBuilder builder, String name, String type, String help, long value) {
+		appendHeader(builder, name, type, help);
+		builder.append(name).append(' ').append(value).append('\n');
+	}
+
 	public MapsforgeConfig getMapsforgeConfig() {
 		return mapsforgeConfig;
 	}
@@ -150,5 +447,29 @@ public class MapsforgeHandler extends AbstractHandler {
 		return tasksHandler;
 	}
 
+	public MapsforgeTileCache getTileCache() {
+		return mapsforgeTileCache;
+	}
+
+	public TileRevalidator getTileRevalidator() {
+		return tileRevalidator;
+	}
+
+	public RenderThemeCache getRenderThemeCache() {
+		return renderThemeCache;
+	}
+
+	public MapFileRegistry getMapFileRegistry() {
+		return mapFileRegistry;
+	}
+
+	public MapDataCache getMapDataCache() {
+		return mapDataCache;
+	}
+
+	public RenderScheduler getRenderScheduler() {
+		return renderScheduler;
+	}
+
 
 }
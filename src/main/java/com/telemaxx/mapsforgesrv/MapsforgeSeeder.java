@@ -0,0 +1,251 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.util.MercatorProjection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Headless rendering of a task's tile pyramid into tile cache or output folder.
+ * Tiles already present in target are skipped, so that interrupted seeding can simply be restarted.
+ */
+public class MapsforgeSeeder {
+
+	private final static Logger logger = LoggerFactory.getLogger(MapsforgeSeeder.class);
+
+	private final static long PROGRESS_INTERVAL = 10; // seconds
+
+	private final String task;
+	private final MapsforgeConfig mapsforgeConfig;
+	private final MapsforgeTaskHandler mapsforgeTaskHandler;
+	private final MapsforgeTileCache mapsforgeTileCache;
+	private final Path outputFolder;
+	private final File outputMBTiles;
+	// Extension of rendered tiles and format of written tiles, png8 tiles are written as png
+	private final String tileFormat;
+	private final String outputFormat;
+	private MBTilesWriter mbTilesWriter = null;
+
+	private final AtomicLong renderedTiles = new AtomicLong();
+	private final AtomicLong emptyTiles = new AtomicLong();
+	private final AtomicLong skippedTiles = new AtomicLong();
+	private final AtomicLong failedTiles = new AtomicLong();
+
+	public MapsforgeSeeder(MapsforgeConfig mapsforgeConfig) throws Exception {
+		this.mapsforgeConfig = mapsforgeConfig;
+		task = mapsforgeConfig.getSeedTask();
+		if (mapsforgeConfig.getTasksConfig().get(task) == null) {
+			logger.error("Task '" + task + "' set with -s doesn't exist: exiting"); //$NON-NLS-1$
+			System.exit(1);
+		}
+		File output = mapsforgeConfig.getSeedOutput();
+		if (output != null && output.getName().endsWith(MapsforgeConfig.MBTILES_EXTENSION)) {
+			outputMBTiles = output;
+			outputFolder = null;
+		} else {
+			outputMBTiles = null;
+			outputFolder = output != null ? output.toPath() : null;
+		}
+		if (output == null && mapsforgeConfig.getTileCacheFolder() == null) {
+			logger.error("Neither output folder set with -o nor tile cache folder configured: exiting"); //$NON-NLS-1$
+			System.exit(1);
+		}
+		MapsforgeHandler mapsforgeHandler = new MapsforgeHandler(mapsforgeConfig, Collections.singleton(task));
+		mapsforgeHandler.awaitTasksStarted();
+		mapsforgeTaskHandler = mapsforgeHandler.getTasksHandler().get(task);
+		mapsforgeTileCache = mapsforgeHandler.getTileCache();
+		if (mapsforgeTaskHandler == null || !mapsforgeTaskHandler.getTaskEnabled()) {
+			logger.error("Task '" + task + "' disabled: exiting"); //$NON-NLS-1$
+			System.exit(1);
+		}
+		tileFormat = mapsforgeConfig.getTasksConfig().get(task).getTileFormat();
+		outputFormat = tileFormat.equals(MapsforgeConfig.TILE_FORMAT_PNG8) ? MapsforgeConfig.TILE_EXTENSION : tileFormat;
+	}
+
+	/*
+	 * Render all tiles of configured zoom level range within bounding box
+	 * Return false if any tile failed to render
+	 */
+	public boolean seed() throws Exception {
+		BoundingBox boundingBox = mapsforgeConfig.getSeedBoundingBox();
+		if (boundingBox == null) boundingBox = mapsforgeTaskHandler.getBoundingBox();
+		if (boundingBox == null) boundingBox = new BoundingBox(-MercatorProjection.LATITUDE_MAX, -180,
+				MercatorProjection.LATITUDE_MAX, 180);
+		int zoomMin = mapsforgeConfig.getSeedZoomMin();
+		int zoomMax = mapsforgeConfig.getSeedZoomMax();
+		int workers = mapsforgeConfig.getSeedWorkers();
+		int metaTile = mapsforgeTaskHandler.getMetaTile();
+
+		long totalTiles = 0;
+		for (int z = zoomMin; z <= zoomMax; z++) {
+			int[] range = getTileRange(boundingBox, z);
+			totalTiles += (long) (range[2] - range[0] + 1) * (range[3] - range[1] + 1);
+		}
+		logger.info("Seeding task '" + task + "' zoom levels " + zoomMin + "-" + zoomMax + " within " + boundingBox //$NON-NLS-1$ //$NON-NLS-2$
+				+ ": " + totalTiles + " tiles with " + workers + " workers into " //$NON-NLS-1$
+				+ (outputFolder != null ? "output folder '" + outputFolder + "'" //$NON-NLS-1$
+				: outputMBTiles != null ? "MBTiles file '" + outputMBTiles + "'" : "tile cache")); //$NON-NLS-1$
+		if (mapsforgeTileCache != null) mapsforgeTileCache.awaitIndexed();
+		if (outputMBTiles != null) {
+			mbTilesWriter = new MBTilesWriter(outputMBTiles, getMetadata(), boundingBox, zoomMin, zoomMax);
+			// Commit pending tiles when interrupted
+			Runtime.getRuntime().addShutdownHook(new Thread(null, mbTilesWriter::close, "Seeder-shutdown")); //$NON-NLS-1$
+		}
+
+		AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(workers,
+				runnable -> new Thread(null, runnable, "Seeder-" + threadNumber.incrementAndGet())); //$NON-NLS-1$
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+				runnable -> new Thread(null, runnable, "Seeder-progress")); //$NON-NLS-1$
+		// Limit number of queued blocks, so that huge pyramids don't exhaust memory
+		Semaphore slots = new Semaphore(2 * workers);
+		long start = System.nanoTime();
+		final long total = totalTiles;
+		reporter.scheduleAtFixedRate(() -> logProgress(total, start), PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.SECONDS);
+		for (int z = zoomMin; z <= zoomMax; z++) {
+			int[] range = getTileRange(boundingBox, z);
+			for (int blockY = range[1] / metaTile * metaTile; blockY <= range[3]; blockY += metaTile) {
+				for (int blockX = range[0] / metaTile * metaTile; blockX <= range[2]; blockX += metaTile) {
+					List<TileRenderKey> keys = new ArrayList<TileRenderKey>();
+					for (int y = Math.max(blockY, range[1]); y <= Math.min(blockY + metaTile - 1, range[3]); y++)
+						for (int x = Math.max(blockX, range[0]); x <= Math.min(blockX + metaTile - 1, range[2]); x++)
+							keys.add(mapsforgeTaskHandler.getDefaultTileRenderKey(x, y, z, tileFormat));
+					slots.acquire();
+					executor.execute(() -> {
+						try {
+							seedBlock(keys);
+						} finally {
+							slots.release();
+						}
+					});
+				}
+			}
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		reporter.shutdownNow();
+		if (mbTilesWriter != null) mbTilesWriter.close();
+		logProgress(totalTiles, start);
+		logger.info("Seeding task '" + task + "' finished: " + renderedTiles.get() + " tiles rendered, " //$NON-NLS-1$
+				+ emptyTiles.get() + " without map data, " + skippedTiles.get() + " already existing, " //$NON-NLS-1$
+				+ failedTiles.get() + " failed"); //$NON-NLS-1$
+		return failedTiles.get() == 0;
+	}
+
+	/*
+	 * Render tiles of one metatile block not yet existing in target
+	 */
+	private void seedBlock(List<TileRenderKey> keys) {
+		for (TileRenderKey key : keys) {
+			try {
+				if (exists(key)) {
+					skippedTiles.incrementAndGet();
+					continue;
+				}
+				// Tile cache receives tile while rendering
+				byte[] tileBytes = mapsforgeTaskHandler.renderTileOnce(key);
+				if (tileBytes == null) {
+					emptyTiles.incrementAndGet();
+					continue;
+				}
+				if (outputFolder != null) write(key, tileBytes);
+				if (mbTilesWriter != null) mbTilesWriter.put(key.getX(), key.getY(), key.getZ(), tileBytes);
+				renderedTiles.incrementAndGet();
+			} catch (Throwable t) {
+				failedTiles.incrementAndGet();
+				logger.error("Seeding tile " + key + " failed: " + t.getMessage()); //$NON-NLS-1$
+			}
+		}
+	}
+
+	private boolean exists(TileRenderKey key) throws SQLException {
+		if (outputFolder != null) return Files.isRegularFile(outputFolder.resolve(getOutputPath(key)));
+		if (mbTilesWriter != null) return mbTilesWriter.contains(key.getX(), key.getY(), key.getZ());
+		return mapsforgeTileCache.contains(key);
+	}
+
+	/*
+	 * Write tile to temporary file first, so that interrupted writes never leave incomplete tiles
+	 */
+	private void write(TileRenderKey key, byte[] data) throws IOException {
+		Path file = outputFolder.resolve(getOutputPath(key));
+		Path tmpFile = file.resolveSibling(file.getFileName() + "." + Thread.currentThread().getId() + ".tmp"); //$NON-NLS-1$ //$NON-NLS-2$
+		Files.createDirectories(file.getParent());
+		Files.write(tmpFile, data);
+		try {
+			Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/*
+	 * MBTiles metadata describing task
+	 */
+	private Map<String, String> getMetadata() {
+		MapsforgeTaskConfig mapsforgeTaskConfig = mapsforgeConfig.getTasksConfig().get(task);
+		String theme = mapsforgeTaskConfig.getThemeFile().getName();
+		if (mapsforgeTaskConfig.getThemeFileStyle() != null) theme += " (" + mapsforgeTaskConfig.getThemeFileStyle() + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+		Map<String, String> metadata = new HashMap<String, String>();
+		metadata.put("name", task); //$NON-NLS-1$
+		metadata.put("format", outputFormat); //$NON-NLS-1$
+		metadata.put("type", "baselayer"); //$NON-NLS-1$ //$NON-NLS-2$
+		metadata.put("version", PropertiesParser.VERSION); //$NON-NLS-1$
+		metadata.put("description", "Rendered by MapsforgeSrv with theme " + theme); //$NON-NLS-1$ //$NON-NLS-2$
+		return metadata;
+	}
+
+	private String getOutputPath(TileRenderKey key) {
+		return key.getZ() + "/" + key.getX() + "/" + key.getY() + "." + outputFormat; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	/*
+	 * Tile number range {xMin, yMin, xMax, yMax} covering bounding box at zoom level
+	 */
+	private static int[] getTileRange(BoundingBox boundingBox, int z) {
+		byte zoomLevel = (byte) z;
+		int tileMax = (1 << z) - 1;
+		int xMin = Math.max(0, MercatorProjection.longitudeToTileX(boundingBox.minLongitude, zoomLevel));
+		int xMax = Math.min(tileMax, MercatorProjection.longitudeToTileX(boundingBox.maxLongitude, zoomLevel));
+		int yMin = Math.max(0, MercatorProjection.latitudeToTileY(boundingBox.maxLatitude, zoomLevel));
+		int yMax = Math.min(tileMax, MercatorProjection.latitudeToTileY(boundingBox.minLatitude, zoomLevel));
+		return new int[] { xMin, yMin, xMax, yMax };
+	}
+
+	private void logProgress(long totalTiles, long start) {
+		long doneTiles = renderedTiles.get() + emptyTiles.get() + failedTiles.get();
+		long processedTiles = doneTiles + skippedTiles.get();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double rate = seconds > 0 ? doneTiles / seconds : 0;
+		String eta = "unknown"; //$NON-NLS-1$
+		if (processedTiles >= totalTiles) {
+			eta = "done"; //$NON-NLS-1$
+		} else if (rate > 0) {
+			long remaining = (long) ((totalTiles - processedTiles) / rate);
+			eta = String.format("%d:%02d:%02d", remaining / 3600, remaining / 60 % 60, remaining % 60); //$NON-NLS-1$
+		}
+		logger.info(String.format(Locale.ROOT, "Seeded %d of %d tiles (%.1f%%), %.1f tiles/s, ETA %s", //$NON-NLS-1$
+				processedTiles, totalTiles, totalTiles > 0 ? 100. * processedTiles / totalTiles : 100., rate, eta));
+	}
+}
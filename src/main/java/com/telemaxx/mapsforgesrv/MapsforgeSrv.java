@@ -135,6 +135,12 @@ public class MapsforgeSrv {
 		memoryFileSystem = MemoryFileSystemBuilder.newEmpty().build();
 		mapsforgeConfig = new MapsforgeConfig(args);
 
+		if (mapsforgeConfig.getSeedTask() != null) {
+			logger.info("################ SEEDING TILES ################");
+			boolean seeded = new MapsforgeSeeder(mapsforgeConfig).seed();
+			System.exit(seeded ? 0 : 1);
+		}
+
 		logger.info("################ STARTING SERVER ################");
 		{	// Begin of local scope
 		XmlConfiguration xmlConfiguration = null;
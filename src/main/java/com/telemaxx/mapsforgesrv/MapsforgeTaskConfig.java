@@ -4,7 +4,9 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -16,8 +18,12 @@ import org.slf4j.LoggerFactory;
 public class MapsforgeTaskConfig extends PropertiesParser{
 
 	private ArrayList<File> mapFiles = null;
+	private ArrayList<File> tileArchives = null;
+	// folder -> map files found in folder
+	private Map<File, List<File>> mapFolders = null;
 	private boolean appendWorldMap;
 	private String preferredLanguage = null;
+	private String mapFileAccess;
 	private File demFolder = null;
 	private File themeFile = null;
 	private String taskName = null;
@@ -36,12 +42,20 @@ public class MapsforgeTaskConfig extends PropertiesParser{
 	protected Integer hillShadingZoomMax = null;
 	private int blackValue;
 	private double gammaValue;
+	private int metaTile;
+	private int pngCompression;
+	private String pngFilter;
+	private int quantizeColors;
+	private boolean webpLossless;
+	private String tileFormat;
 	private String checkSum = null;
+	private File taskFile = null;
 
 	private final static Logger logger = LoggerFactory.getLogger(MapsforgeTaskConfig.class);
 
 	public MapsforgeTaskConfig(String taskName, File taskFile) throws Exception {
 		this.taskName = taskName;
+		this.taskFile = taskFile;
 		checkSum = readConfig(taskFile);
 		initConfig();
 	}
@@ -78,6 +92,8 @@ public class MapsforgeTaskConfig extends PropertiesParser{
 
 	private void parseMapFiles() throws Exception {
 		mapFiles = new ArrayList<File>();
+		tileArchives = new ArrayList<File>();
+		mapFolders = new LinkedHashMap<File, List<File>>();
 		String msgHeader = parsePadMsg("Map file(s)"); //$NON-NLS-1$
 		String mapFilePathsString = retrieveConfigValue("mapfiles"); //$NON-NLS-1$
 		if (mapFilePathsString != null) {
@@ -89,6 +105,7 @@ public class MapsforgeTaskConfig extends PropertiesParser{
 					if (file.isFile()) {
 						mapFiles.add(file);
 					} else if (file.isDirectory()) {
+						List<File> folderMapFiles = new ArrayList<File>();
 						for (File mapfile : file.listFiles(new FilenameFilter() {
 							@Override
 							public boolean accept(File dir, String name) {
@@ -96,7 +113,9 @@ public class MapsforgeTaskConfig extends PropertiesParser{
 							}
 						})) {
 							mapFiles.add(mapfile);
+							folderMapFiles.add(mapfile);
 						}
+						mapFolders.put(file, folderMapFiles);
 					}
 				}
 			}
@@ -121,6 +140,11 @@ public class MapsforgeTaskConfig extends PropertiesParser{
 		} else {
 			logger.info(msgHeader + ": default [undefined]"); //$NON-NLS-1$
 		}
+		// Tile archives are served as they are, only map files are rendered
+		for (File mapFile : mapFiles) {
+			if (mapFile.getName().endsWith(MBTILES_EXTENSION)) tileArchives.add(mapFile);
+		}
+		mapFiles.removeAll(tileArchives);
 		if (mapFiles.size() == 0) configProperties.setProperty("worldmap", "");
 	}
 
@@ -130,6 +154,7 @@ public class MapsforgeTaskConfig extends PropertiesParser{
 		parseMapFiles();
 		appendWorldMap = parseHasOption("worldmap", "Append built-in world map");
 		preferredLanguage = parseString(null, "language", null, "Preferred map language"); //$NON-NLS-1$ //$NON-NLS-2$
+		mapFileAccess = parseString(DEFAULT_MAPFILE_ACCESS, "mapfile-access", AUTHORIZED_MAPFILE_ACCESS, "Map file access"); //$NON-NLS-1$ //$NON-NLS-2$
 		parseThemeFile();
 		themeFileStyle = parseString(null, "style", null, "Theme style"); //$NON-NLS-1$ //$NON-NLS-2$
 		parseThemeOverlays();
@@ -145,6 +170,20 @@ public class MapsforgeTaskConfig extends PropertiesParser{
 		textScale = (float) parseNumber(DEFAULT_TEXTSCALE, "text-scale", 0., null, "Text scale factor",true); //$NON-NLS-1$ //$NON-NLS-2$
 		symbolScale = (float) parseNumber(DEFAULT_SYMBOLSCALE, "symbol-scale", 0., null, "Symbol scale factor",true); //$NON-NLS-1$ //$NON-NLS-2$
 		lineScale = (float) parseNumber(DEFAULT_LINESCALE, "line-scale", 0., null, "Line scale factor",true); //$NON-NLS-1$ //$NON-NLS-2$
+		metaTile = (int) parseNumber(DEFAULT_METATILE, "metatile", 1, 8, "Metatile size",false); //$NON-NLS-1$ //$NON-NLS-2$
+		if (Integer.bitCount(metaTile) != 1) parseError(parsePadMsg("Metatile size"), "'" + metaTile + "' not in {1,2,4,8}"); //$NON-NLS-1$
+		pngCompression = (int) parseNumber(DEFAULT_PNG_COMPRESSION, "png-compression", 0, 9, "PNG compression level",false); //$NON-NLS-1$ //$NON-NLS-2$
+		pngFilter = parseString(DEFAULT_PNG_FILTER, "png-filter", PngEncoder.FILTERS, "PNG filter"); //$NON-NLS-1$ //$NON-NLS-2$
+		quantizeColors = (int) parseNumber(DEFAULT_QUANTIZE_COLORS, "quantize-colors", 2, 256, "Quantized colors",false); //$NON-NLS-1$ //$NON-NLS-2$
+		webpLossless = parseBoolean(DEFAULT_WEBP_LOSSLESS, "webp-lossless", "WebP lossless"); //$NON-NLS-1$ //$NON-NLS-2$
+		// Tiles rendered without request are encoded as the task's encoder settings suggest
+		if (retrieveConfigValue("webp-lossless") != null) { //$NON-NLS-1$
+			tileFormat = TILE_FORMAT_WEBP;
+		} else if (retrieveConfigValue("quantize-colors") != null) { //$NON-NLS-1$
+			tileFormat = TILE_FORMAT_PNG8;
+		} else {
+			tileFormat = TILE_EXTENSION;
+		}
 		if (parseGetError()) {
 			logger.error("Properties parsing error(s) - task '" + taskName + "' disabled"); //$NON-NLS-1$
 			checkSum = null;
@@ -221,10 +260,22 @@ public class MapsforgeTaskConfig extends PropertiesParser{
 		return this.mapFiles;
 	}
 
+	public List<File> getTileArchives() {
+		return this.tileArchives;
+	}
+
+	public Map<File, List<File>> getMapFolders() {
+		return this.mapFolders;
+	}
+
 	public String getPreferredLanguage() {
 		return this.preferredLanguage;
 	}
 
+	public String getMapFileAccess() {
+		return this.mapFileAccess;
+	}
+
 	public boolean getAppendWorldMap() {
 		return this.appendWorldMap;
 	}
@@ -293,8 +344,40 @@ public class MapsforgeTaskConfig extends PropertiesParser{
 		return this.gammaValue;
 	}
 
+	public int getMetaTile() {
+		return this.metaTile;
+	}
+
+	public int getPngCompression() {
+		return this.pngCompression;
+	}
+
+	public String getPngFilter() {
+		return this.pngFilter;
+	}
+
+	public int getQuantizeColors() {
+		return this.quantizeColors;
+	}
+
+	public boolean getWebpLossless() {
+		return this.webpLossless;
+	}
+
+	/*
+	 * Format of tiles rendered without request, e.g. by seeding:
+	 * webp if webp-lossless is set, png8 if quantize-colors is set, png otherwise
+	 */
+	public String getTileFormat() {
+		return this.tileFormat;
+	}
+
 	public String getCheckSum() {
 		return this.checkSum;
 	}
 
+	public File getTaskFile() {
+		return this.taskFile;
+	}
+
 }
@@ -1,24 +1,35 @@
 package com.telemaxx.mapsforgesrv;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
 import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,8 +37,10 @@ import javax.imageio.ImageIO;
 
 import org.eclipse.jetty.server.Request;
 import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.BoundingBox;
 import org.mapsforge.core.model.Tile;
 import org.mapsforge.map.awt.graphics.AwtGraphicFactory;
+import org.mapsforge.map.datastore.MapDataStore;
 import org.mapsforge.map.datastore.MultiMapDataStore;
 import org.mapsforge.map.layer.cache.TileCache;
 import org.mapsforge.map.layer.hills.AClasyHillShading.ClasyParams;
@@ -58,8 +71,10 @@ import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.telemaxx.mapsforgesrv.MapFileRegistry.SharedMapFile;
+import com.telemaxx.mapsforgesrv.RenderThemeCache.CompiledRenderTheme;
+
 import jakarta.servlet.ServletException;
-import jakarta.servlet.ServletOutputStream;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
@@ -67,7 +82,6 @@ public class MapsforgeTaskHandler {
 
 	final static Logger logger = LoggerFactory.getLogger(MapsforgeTaskHandler.class);
 
-	private final DisplayModel displayModel;
 	private final TileBasedLabelStore labelStore;
 	private final TileCache tileCache;
 	private final MultiMapDataStore multiMapDataStore;
@@ -80,22 +94,63 @@ public class MapsforgeTaskHandler {
 	private boolean hillShadingOverlay = false;
 	private HillsRenderConfig hillsRenderConfig = null;
 	private XmlRenderTheme xmlRenderTheme;
-	private RenderThemeFuture renderThemeFuture;
-	private int[] colorLookupTable = null;
+	private XmlRenderThemeMenuCallback xmlRenderThemeMenuCallback = null;
+	private byte[] renderThemeBytes;
+	private String renderThemeKey;
+	private volatile boolean overlaysLogged = false;
+	// userScale -> compiled render theme in use, least recently used first
+	private final LinkedHashMap<Float, CompiledRenderTheme> compiledRenderThemes =
+			new LinkedHashMap<Float, CompiledRenderTheme>(8, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Float, CompiledRenderTheme> eldest) {
+			if (size() <= MAX_SCALED_RENDER_THEMES) return false;
+			mapsforgeHandler.getRenderThemeCache().release(eldest.getValue().key);
+			return true;
+		}
+	};
+	private PixelPipeline pixelPipeline = null;
 	private String name;
 	private Map<String, DatabaseRenderer> databaseRenderer = null;
+	private int metaTile = 1;
+	private PngEncoder pngEncoder;
+	private final WebpEncoder webpEncoder = new WebpEncoder();
+	private final List<MBTilesReader> tileArchives = new ArrayList<MBTilesReader>();
+	// Map files acquired from server-wide registry
+	private final List<SharedMapFile> sharedMapFiles = new ArrayList<SharedMapFile>();
 
 	private MapsforgeHandler mapsforgeHandler;
 	private MapsforgeConfig mapsforgeConfig;
 	private MapsforgeTaskConfig mapsforgeTaskConfig;
 
-	private CountDownLatch countDownLatch = new CountDownLatch(0);
+	// Renders in progress and number of renders saved by waiting for them
+	private final Map<TileRenderKey, RunningRender> runningRenders = new ConcurrentHashMap<TileRenderKey, RunningRender>();
+	private final AtomicLong coalescedRenders = new AtomicLong();
+	private final RenderMetrics renderMetrics = new RenderMetrics();
+	// Request attribute holding key of tile to be written, for recording write time
+	protected final static String TILE_RENDER_KEY_ATTRIBUTE = TileRenderKey.class.getName();
+
+	// Generation of tiles, changing with task properties, render theme and its updates, replaced along with its validators
+	private volatile Generation generation = null;
+	// Held for writing while generation changes,
+	// for reading while tiles of a generation are looked up and answered or rendered tiles are cached
+	private final ReadWriteLock generationLock = new ReentrantReadWriteLock();
+
+	private static final Object displayModelScalesLock = new Object();
+	private static String displayModelScales = null;
+	private static int displayModelScalesUsers = 0;
+
+	// Maximum number of different userScale values kept ready for rendering
+	private static final int MAX_SCALED_RENDER_THEMES = 4;
+	// Minimum number of map files in a folder to access them through spatial index
+	private static final int MIN_INDEXED_MAP_FILES = 8;
 
 	private static final Pattern requestPathPattern = Pattern.compile("/(\\d+)/(-?\\d+)/(-?\\d+)(?:(?:\\.)(.*))?"); //$NON-NLS-1$
 
 	public MapsforgeTaskHandler(MapsforgeHandler mapsforgeHandler, MapsforgeTaskConfig mapsforgeTaskConfig, String name) throws Exception {
 
 		logger.info("################ STARTING TASK '"+name+"' ################"); //$NON-NLS-1$
+		long startTime = System.nanoTime();
 
 		this.name = name;
 		this.mapsforgeHandler = mapsforgeHandler;
@@ -106,214 +161,483 @@ public class MapsforgeTaskHandler {
 		String hillShadingAlgorithm = mapsforgeTaskConfig.getHillShadingAlgorithm();
 		File demFolder = mapsforgeTaskConfig.getDemFolder();
 
-		logger.info("------------------- MAPS INFO --------------------");
-		multiMapDataStore = new MultiMapDataStore(MultiMapDataStore.DataPolicy.RETURN_ALL);
-		if (mapFilesSize == 0) {
-			if (hillShadingAlgorithm != null && demFolder != null) hillShadingOverlay = true;
-		} else {
-			mapsforgeTaskConfig.getMapFiles().forEach(mapFile -> {
-				MapFile map = new MapFile(mapFile, mapsforgeTaskConfig.getPreferredLanguage());
-				String[] mapLanguages = map.getMapLanguages();
-				String msgMap = "'" + mapFile + "' supported languages: ";
-				if (mapLanguages != null) {
-					logger.info(msgMap+"{"+String.join(",", mapLanguages)+"}");
+		// Map files and other shared resources acquired so far are released if task fails to start
+		try {
+			logger.info("------------------- MAPS INFO --------------------");
+			MapFileRegistry mapFileRegistry = mapsforgeHandler.getMapFileRegistry();
+			multiMapDataStore = new MultiMapDataStore(MultiMapDataStore.DataPolicy.RETURN_ALL);
+			if (mapFilesSize == 0) {
+				if (hillShadingAlgorithm != null && demFolder != null) hillShadingOverlay = true;
+			} else {
+				// Map files of large folders are accessed through spatial index
+				Map<File, File> indexedMapFolders = new HashMap<File, File>();
+				Map<File, List<MapDataStore>> indexedMapDataStores = new LinkedHashMap<File, List<MapDataStore>>();
+				mapsforgeTaskConfig.getMapFolders().forEach((folder, folderMapFiles) -> {
+					if (folderMapFiles.size() < MIN_INDEXED_MAP_FILES) return;
+					folderMapFiles.forEach(mapFile -> indexedMapFolders.put(mapFile, folder));
+					indexedMapDataStores.put(folder, new ArrayList<MapDataStore>());
+				});
+				for (File mapFile : mapsforgeTaskConfig.getMapFiles()) {
+					MapFile map = acquireMapFile(mapFileRegistry.acquire(mapFile, mapsforgeTaskConfig.getPreferredLanguage(),
+							mapsforgeTaskConfig.getMapFileAccess()));
+					String[] mapLanguages = map.getMapLanguages();
+					String msgMap = "'" + mapFile + "' supported languages: ";
+					if (mapLanguages != null) {
+						logger.info(msgMap+"{"+String.join(",", mapLanguages)+"}");
+					} else {
+						logger.info(msgMap+"-");
+					}
+					File folder = indexedMapFolders.get(mapFile);
+					if (folder != null) {
+						indexedMapDataStores.get(folder).add(map);
+					} else {
+						multiMapDataStore.addMapDataStore(map, true, true);
+					}
+				}
+				indexedMapDataStores.forEach((folder, mapDataStores) -> multiMapDataStore.addMapDataStore(
+						new IndexedMapDataStore(folder, mapDataStores), true, true));
+			}
+			// Append built-in world.map with background map priority
+			if (mapsforgeTaskConfig.getAppendWorldMap()) {
+				MapFile map = acquireMapFile(mapFileRegistry.acquire(MapsforgeConfig.worldMapPath));
+				logger.info("'(built-in)" + System.getProperty("file.separator") + "world.map'");
+				if (mapFilesSize > 0) {
+					MultiMapDataStore worldMapDataStore = new MultiMapDataStore();
+					worldMapDataStore.setPriority(-1);
+					worldMapDataStore.addMapDataStore(map, true, true);
+					multiMapDataStore.addMapDataStore(worldMapDataStore, true, true);
 				} else {
-					logger.info(msgMap+"-");
+					multiMapDataStore.addMapDataStore(map, true, true);
 				}
-				multiMapDataStore.addMapDataStore(map, true, true);
-			});
-		}
-		// Append built-in world.map with background map priority
-		if (mapsforgeTaskConfig.getAppendWorldMap()) {
-			FileChannel mapFileChannel = FileChannel.open(MapsforgeConfig.worldMapPath, StandardOpenOption.READ);
-			MapFile map = new MapFile(mapFileChannel);
-			logger.info("'(built-in)" + System.getProperty("file.separator") + "world.map'");
-			if (mapFilesSize > 0) {
-				MultiMapDataStore worldMapDataStore = new MultiMapDataStore();
-				worldMapDataStore.setPriority(-1);
-				worldMapDataStore.addMapDataStore(map, true, true);
-				multiMapDataStore.addMapDataStore(worldMapDataStore, true, true);
-			} else {
-				multiMapDataStore.addMapDataStore(map, true, true);
 			}
-		}
 
-		DemFolderFS demFolderFS = null;
-		if (demFolder != null) demFolderFS = new DemFolderFS(demFolder);
-
-		if (hillShadingOverlay) {
-			logger.info("No map -> hillshading overlay with alpha transparency only!");
-			themeFile = new File("HILLSHADING");
-			themeFileStyle = null;
-			tileCache = null;
-			labelStore = null;
-			renderLabels = false;
-			cacheLabels = false;
-			// Mapsforge >= 0.22.0: hillshading bitmap calculation changed
-			colorLookupTable = new int[256];
-			int pixelValue,gray,alpha;
-			int index = 256;
-			while (index-- > 0) {
-				gray = index;
-				alpha = 255-gray;
-				pixelValue = alpha << 24;
-				colorLookupTable[index] = pixelValue;
-			}
-		} else {
-			themeFile = mapsforgeTaskConfig.getThemeFile();
-			themeFileStyle = mapsforgeTaskConfig.getThemeFileStyle();
-			tileCache = new DummyCache(1024);
-			labelStore = new TileBasedLabelStore(1024);
-			renderLabels = true;
-			cacheLabels = true;
-			int blackValue = mapsforgeTaskConfig.getBlackValue();
-			double gammaValue = mapsforgeTaskConfig.getGammaValue();
-			// first apply gamma correction and then contrast-stretching
-			if (gammaValue != 1. || blackValue != 0) {
-				colorLookupTable = new int[256];
-				double gammaExponent = 1. / gammaValue;
-				double blackNormalized = blackValue / 255.;
-				double stretchFactor = 1. / (1. - blackNormalized);
-				int index = 256;
-				double value;
-				while (index-- > 0) {
-					value = index / 255.;
-					value = Math.pow(value, gammaExponent);
-					value = value > blackNormalized ? ((value - blackNormalized) * stretchFactor) : 0.;
-					colorLookupTable[index] = (int) Math.round(value * 255.);
+			for (File tileArchive : mapsforgeTaskConfig.getTileArchives()) {
+				try {
+					MBTilesReader mbTilesReader = new MBTilesReader(tileArchive);
+					logger.info("'" + tileArchive + "' tile archive: format " + mbTilesReader.getFormat() + ", zoom levels " //$NON-NLS-1$
+							+ mbTilesReader.getZoomMin() + "-" + mbTilesReader.getZoomMax()); //$NON-NLS-1$
+					tileArchives.add(mbTilesReader);
+				} catch (SQLException e) {
+					logger.error("Can't open tile archive '" + tileArchive + "': " + e.getMessage()); //$NON-NLS-1$
 				}
 			}
-		}
 
-		DisplayModel.setDeviceScaleFactor(mapsforgeTaskConfig.getDeviceScale());
-		DisplayModel.textScale = mapsforgeTaskConfig.getTextScale();
-		DisplayModel.symbolScale = mapsforgeTaskConfig.getSymbolScale();
-		DisplayModel.lineScale = mapsforgeTaskConfig.getLineScale();
-		displayModel = new DisplayModel();
-		displayModel.setUserScaleFactor(mapsforgeTaskConfig.getUserScale());
-
-		if (hillShadingAlgorithm != null && demFolder != null) { // hillshading
-			ShadingAlgorithm shadingAlgorithm = null;
-			if (hillShadingAlgorithm.equals("simple")) {
-				shadingAlgorithm = new SimpleShadingAlgorithm(mapsforgeTaskConfig.getHillShadingArguments()[0],
-						mapsforgeTaskConfig.getHillShadingArguments()[1]);
-			} else if (hillShadingAlgorithm.equals("diffuselight")) {
-				shadingAlgorithm = new DiffuseLightShadingAlgorithm(
-						(float) mapsforgeTaskConfig.getHillShadingArguments()[0]);
-			} else if (Arrays.stream(new String[] {"adaptasy","stdasy","hiresasy","simplasy"}).anyMatch(hillShadingAlgorithm::equals)) {
-				ClasyParams clasyParams = new ClasyParams();
-				clasyParams.setAsymmetryFactor((float) mapsforgeTaskConfig.getHillShadingArguments()[0]);
-				clasyParams.setMinSlope((float) mapsforgeTaskConfig.getHillShadingArguments()[1]);
-				clasyParams.setMaxSlope((float) mapsforgeTaskConfig.getHillShadingArguments()[2]);
-				clasyParams.setReadingThreadsCount((int) mapsforgeTaskConfig.getHillShadingArguments()[3]);
-				clasyParams.setComputingThreadsCount((int) mapsforgeTaskConfig.getHillShadingArguments()[4]);
-				clasyParams.setPreprocess(mapsforgeTaskConfig.getHillShadingArguments()[5] == 1);
-				switch (hillShadingAlgorithm) {
-					case "adaptasy":
-						shadingAlgorithm = new AdaptiveClasyHillShading(clasyParams,MapsforgeConfig.HILLSHADING_ADAPTIVE_HQ);
-						((AdaptiveClasyHillShading)shadingAlgorithm).setAdaptiveZoomEnabled(MapsforgeConfig.HILLSHADING_ADAPTIVE_ZOOM_ENABLED);
-						((AdaptiveClasyHillShading)shadingAlgorithm).setCustomQualityScale(MapsforgeConfig.HILLSHADING_ADAPTIVE_CUSTOM_QUALITY_SCALE);
-						break;
-					case "hiresasy":
-						shadingAlgorithm = new HiResClasyHillShading(clasyParams);
-						break;
-					case "stdasy":
-						shadingAlgorithm = new StandardClasyHillShading(clasyParams);
-						break;
-					case "simplasy":
-						shadingAlgorithm = new SimpleClasyHillShading(clasyParams);
-						break;
-				}
+			long mapsTime = System.nanoTime();
+
+			metaTile = mapsforgeTaskConfig.getMetaTile();
+			pngEncoder = new PngEncoder(mapsforgeTaskConfig.getPngCompression(), mapsforgeTaskConfig.getPngFilter());
+			if (metaTile > 1 && mapsforgeHandler.getTileCache() == null) {
+				logger.warn("Metatile block prefetch requires tile cache: rendering requested tiles only"); //$NON-NLS-1$
+				metaTile = 1;
+			}
+
+			DemFolderFS demFolderFS = null;
+			if (demFolder != null) demFolderFS = new DemFolderFS(demFolder);
+
+			if (hillShadingOverlay) {
+				logger.info("No map -> hillshading overlay with alpha transparency only!");
+				themeFile = new File("HILLSHADING");
+				themeFileStyle = null;
+				tileCache = null;
+				labelStore = null;
+				renderLabels = false;
+				cacheLabels = false;
+				// Mapsforge >= 0.22.0: hillshading bitmap calculation changed
+				// Gray value of hillshading bitmap becomes alpha value of black overlay
+				int[] alphaLookupTable = new int[256];
+				for (int gray = 0; gray < 256; gray++) alphaLookupTable[gray] = 255 - gray;
+				pixelPipeline = PixelPipeline.alphaLookup(alphaLookupTable);
 			} else {
-				throw new Exception("Unknown HillShadingAlgorithm '"+hillShadingAlgorithm+"'");
+				themeFile = mapsforgeTaskConfig.getThemeFile();
+				themeFileStyle = mapsforgeTaskConfig.getThemeFileStyle();
+				tileCache = new DummyCache(1024);
+				labelStore = new TileBasedLabelStore(1024);
+				renderLabels = true;
+				cacheLabels = true;
+				int blackValue = mapsforgeTaskConfig.getBlackValue();
+				double gammaValue = mapsforgeTaskConfig.getGammaValue();
+				// first apply gamma correction and then contrast-stretching
+				if (gammaValue != 1. || blackValue != 0) {
+					int[] colorLookupTable = new int[256];
+					double gammaExponent = 1. / gammaValue;
+					double blackNormalized = blackValue / 255.;
+					double stretchFactor = 1. / (1. - blackNormalized);
+					int index = 256;
+					double value;
+					while (index-- > 0) {
+						value = index / 255.;
+						value = Math.pow(value, gammaExponent);
+						value = value > blackNormalized ? ((value - blackNormalized) * stretchFactor) : 0.;
+						colorLookupTable[index] = (int) Math.round(value * 255.);
+					}
+					pixelPipeline = PixelPipeline.colorLookup(colorLookupTable);
+				}
 			}
 
-			MemoryCachingHgtReaderTileSource tileSource = new MemoryCachingHgtReaderTileSource(
-					demFolderFS, shadingAlgorithm, mapsforgeHandler.getGraphicFactory(),
-					MapsforgeConfig.HILLSHADING_INTERPOLATION_OVERLAP);
-			tileSource.applyConfiguration(true); // true for allow parallel
-
-			hillsRenderConfig = new HillsRenderConfig(tileSource);
-			// Mapsforge >= 0.22.0: RenderThemeHandler.java raised default magnitude from 64 to 128
-			// For look-and-feel backward compatibility, specified MagnitudeScaleFactor must be divided by 2
-			hillsRenderConfig.setMagnitudeScaleFactor((float) (0.5*mapsforgeTaskConfig.getHillShadingMagnitude()));
-			hillsRenderConfig.indexOnThread();
-		}
-
-		databaseRenderer = new HashMap<String, DatabaseRenderer>();
-		databaseRenderer.put("std", new DatabaseRenderer(multiMapDataStore, mapsforgeHandler.getGraphicFactory(), tileCache,
-				labelStore, renderLabels, cacheLabels, null));
-		if (hillsRenderConfig != null)
-			databaseRenderer.put("hs", new DatabaseRenderer(multiMapDataStore, mapsforgeHandler.getGraphicFactory(), tileCache,
-					labelStore, renderLabels, cacheLabels, hillsRenderConfig));
-
-		XmlRenderThemeMenuCallback menuCallBack = new XmlRenderThemeMenuCallback() {
-			@Override
-			public Set<String> getCategories(XmlRenderThemeStyleMenu styleMenu) {
-				String id = null;
-				if (themeFileStyle != null) {
-					id = themeFileStyle;
+			if (hillShadingAlgorithm != null && demFolder != null) { // hillshading
+				ShadingAlgorithm shadingAlgorithm = null;
+				if (hillShadingAlgorithm.equals("simple")) {
+					shadingAlgorithm = new SimpleShadingAlgorithm(mapsforgeTaskConfig.getHillShadingArguments()[0],
+							mapsforgeTaskConfig.getHillShadingArguments()[1]);
+				} else if (hillShadingAlgorithm.equals("diffuselight")) {
+					shadingAlgorithm = new DiffuseLightShadingAlgorithm(
+							(float) mapsforgeTaskConfig.getHillShadingArguments()[0]);
+				} else if (Arrays.stream(new String[] {"adaptasy","stdasy","hiresasy","simplasy"}).anyMatch(hillShadingAlgorithm::equals)) {
+					ClasyParams clasyParams = new ClasyParams();
+					clasyParams.setAsymmetryFactor((float) mapsforgeTaskConfig.getHillShadingArguments()[0]);
+					clasyParams.setMinSlope((float) mapsforgeTaskConfig.getHillShadingArguments()[1]);
+					clasyParams.setMaxSlope((float) mapsforgeTaskConfig.getHillShadingArguments()[2]);
+					clasyParams.setReadingThreadsCount((int) mapsforgeTaskConfig.getHillShadingArguments()[3]);
+					clasyParams.setComputingThreadsCount((int) mapsforgeTaskConfig.getHillShadingArguments()[4]);
+					clasyParams.setPreprocess(mapsforgeTaskConfig.getHillShadingArguments()[5] == 1);
+					switch (hillShadingAlgorithm) {
+						case "adaptasy":
+							shadingAlgorithm = new AdaptiveClasyHillShading(clasyParams,MapsforgeConfig.HILLSHADING_ADAPTIVE_HQ);
+							((AdaptiveClasyHillShading)shadingAlgorithm).setAdaptiveZoomEnabled(MapsforgeConfig.HILLSHADING_ADAPTIVE_ZOOM_ENABLED);
+							((AdaptiveClasyHillShading)shadingAlgorithm).setCustomQualityScale(MapsforgeConfig.HILLSHADING_ADAPTIVE_CUSTOM_QUALITY_SCALE);
+							break;
+						case "hiresasy":
+							shadingAlgorithm = new HiResClasyHillShading(clasyParams);
+							break;
+						case "stdasy":
+							shadingAlgorithm = new StandardClasyHillShading(clasyParams);
+							break;
+						case "simplasy":
+							shadingAlgorithm = new SimpleClasyHillShading(clasyParams);
+							break;
+					}
 				} else {
-					id = styleMenu.getDefaultValue();
+					throw new Exception("Unknown HillShadingAlgorithm '"+hillShadingAlgorithm+"'");
 				}
 
-				XmlRenderThemeStyleLayer baseLayer = styleMenu.getLayer(id);
-				Set<String> result = baseLayer.getCategories();
-				logger.info("----------------- THEME OVERLAYS -----------------"); //$NON-NLS-1$
-				String[] enabled = {"Disabled","Enabled "};
-				int maxlen = 0;
-				for (XmlRenderThemeStyleLayer overlay : baseLayer.getOverlays()) {
-					int strlen = overlay.getId().length();
-					if (strlen > maxlen) maxlen = strlen;
-				}
-				for (XmlRenderThemeStyleLayer overlay : baseLayer.getOverlays()) {
-					String overlayId = overlay.getId();
-					boolean overlayEnabled = false;
-					String[] themeFileOverlays = mapsforgeTaskConfig.getThemeFileOverlays();
-					if (themeFileOverlays == null) {
-						overlayEnabled = overlay.isEnabled();
+				MemoryCachingHgtReaderTileSource tileSource = new MemoryCachingHgtReaderTileSource(
+						demFolderFS, shadingAlgorithm, mapsforgeHandler.getGraphicFactory(),
+						MapsforgeConfig.HILLSHADING_INTERPOLATION_OVERLAP);
+				tileSource.applyConfiguration(true); // true for allow parallel
+
+				hillsRenderConfig = new HillsRenderConfig(tileSource);
+				// Mapsforge >= 0.22.0: RenderThemeHandler.java raised default magnitude from 64 to 128
+				// For look-and-feel backward compatibility, specified MagnitudeScaleFactor must be divided by 2
+				hillsRenderConfig.setMagnitudeScaleFactor((float) (0.5*mapsforgeTaskConfig.getHillShadingMagnitude()));
+				hillsRenderConfig.indexOnThread();
+			}
+			long hillShadingTime = System.nanoTime();
+
+			databaseRenderer = new HashMap<String, DatabaseRenderer>();
+			databaseRenderer.put("std", new DatabaseRenderer(multiMapDataStore, mapsforgeHandler.getGraphicFactory(), tileCache,
+					labelStore, renderLabels, cacheLabels, null));
+			if (hillsRenderConfig != null)
+				databaseRenderer.put("hs", new DatabaseRenderer(multiMapDataStore, mapsforgeHandler.getGraphicFactory(), tileCache,
+						labelStore, renderLabels, cacheLabels, hillsRenderConfig));
+
+			XmlRenderThemeMenuCallback menuCallBack = new XmlRenderThemeMenuCallback() {
+				@Override
+				public Set<String> getCategories(XmlRenderThemeStyleMenu styleMenu) {
+					String id = null;
+					if (themeFileStyle != null) {
+						id = themeFileStyle;
 					} else {
-						for (int i = 0; i < themeFileOverlays.length; i++) {
-							if (themeFileOverlays[i].equals(overlayId))
-								overlayEnabled = true;
-						}
+						id = styleMenu.getDefaultValue();
+					}
+
+					XmlRenderThemeStyleLayer baseLayer = styleMenu.getLayer(id);
+					Set<String> result = baseLayer.getCategories();
+					// Render theme is parsed again for each userScale, log overlays once only
+					boolean logOverlays = !overlaysLogged;
+					overlaysLogged = true;
+					if (logOverlays) logger.info("----------------- THEME OVERLAYS -----------------"); //$NON-NLS-1$
+					String[] enabled = {"Disabled","Enabled "};
+					int maxlen = 0;
+					for (XmlRenderThemeStyleLayer overlay : baseLayer.getOverlays()) {
+						int strlen = overlay.getId().length();
+						if (strlen > maxlen) maxlen = strlen;
 					}
-					logger.info(enabled[overlayEnabled?1:0] + "  : " + String.format("%-" + maxlen + "s", overlayId) +
-							" --> " + overlay.getTitle(mapsforgeTaskConfig.getPreferredLanguage()));
-					if (overlayEnabled) {
-						result.addAll(overlay.getCategories());
+					for (XmlRenderThemeStyleLayer overlay : baseLayer.getOverlays()) {
+						String overlayId = overlay.getId();
+						boolean overlayEnabled = false;
+						String[] themeFileOverlays = mapsforgeTaskConfig.getThemeFileOverlays();
+						if (themeFileOverlays == null) {
+							overlayEnabled = overlay.isEnabled();
+						} else {
+							for (int i = 0; i < themeFileOverlays.length; i++) {
+								if (themeFileOverlays[i].equals(overlayId))
+									overlayEnabled = true;
+							}
+						}
+						if (logOverlays) logger.info(enabled[overlayEnabled?1:0] + "  : " + String.format("%-" + maxlen + "s", overlayId) +
+								" --> " + overlay.getTitle(mapsforgeTaskConfig.getPreferredLanguage()));
+						if (overlayEnabled) {
+							result.addAll(overlay.getCategories());
+						}
 					}
+
+					return result;
 				}
+			};
+
+			xmlRenderTheme = null;
+			for (MyMapsforgeThemes enumItem : new ArrayList<MyMapsforgeThemes>(EnumSet.allOf(MyMapsforgeThemes.class))) {
+				if (enumItem.toString().equals(themeFile.getPath())) {
+					xmlRenderTheme = enumItem;	// Internal render theme
+					break;
+				};
+			};
 
-				countDownLatch.countDown();
-				return result;
+			if (xmlRenderTheme == null) {
+				try {
+					xmlRenderTheme = new ExternalRenderTheme(themeFile);	// External render theme
+				} catch (Exception e) {
+					logger.error("Defined theme file '"+themeFile+"' does not exist or cannot be read: Task "+name+" disabled"); //$NON-NLS-1$
+					taskEnabled = false;
+					return;
+				}
 			}
-		};
 
-		xmlRenderTheme = null;
-		for (MyMapsforgeThemes enumItem : new ArrayList<MyMapsforgeThemes>(EnumSet.allOf(MyMapsforgeThemes.class))) {
-			if (enumItem.toString().equals(themeFile.getPath())) {
-				xmlRenderTheme = enumItem;	// Internal render theme
+			renderThemeBytes = readRenderTheme();
+
+			// Does render theme has a style menu? yes: set callback, no: no callback
+			switch (showStyleNames(renderThemeBytes)) {
+			case 1:
+				xmlRenderThemeMenuCallback = menuCallBack;
 				break;
+			case -1:
+				logger.error("Defined style '" + themeFileStyle+"' not available: Task " + name + " disabled"); //$NON-NLS-1$
+				taskEnabled = false;
+				return;
 			};
-		};
 
-		if (xmlRenderTheme == null) {
+			renderThemeKey = createRenderThemeKey();
 			try {
-				xmlRenderTheme = new ExternalRenderTheme(themeFile);	// External render theme
-			} catch (Exception e) {
-				logger.error("Defined theme file '"+themeFile+"' does not exist or cannot be read: Task "+name+" disabled"); //$NON-NLS-1$
+				getCompiledRenderTheme(mapsforgeTaskConfig.getUserScale()).renderThemeFuture.get();
+			} catch (ExecutionException e) {
+				logger.error("Theme file '" + themeFile + "' cannot be parsed: " + e.getCause().getMessage() + ": Task " + name + " disabled"); //$NON-NLS-1$
+				destroy();
 				taskEnabled = false;
 				return;
 			}
+			long themeTime = System.nanoTime();
+
+			String generationId = createGenerationId();
+			MapsforgeTileCache mapsforgeTileCache = mapsforgeHandler.getTileCache();
+			if (mapsforgeTileCache != null) mapsforgeTileCache.openTask(name, generationId);
+			generation = createGeneration(generationId, 0);
+			logger.info("Task '" + name + "' started in " + (System.nanoTime() - startTime) / 1000000 + " ms: maps " //$NON-NLS-1$
+					+ (mapsTime - startTime) / 1000000 + " ms, hillshading " + (hillShadingTime - mapsTime) / 1000000 //$NON-NLS-1$
+					+ " ms, theme " + (themeTime - hillShadingTime) / 1000000 + " ms"); //$NON-NLS-1$
+			logger.info("--------------------------------------------------"); //$NON-NLS-1$
+		} catch (Exception e) {
+			destroy();
+			throw e;
+		}
+	}
+
+	/*
+	 * Cached tiles become invalid if either task properties or render theme change
+	 */
+	private String createGenerationId() throws Exception {
+		ByteArrayOutputStream generationStream = new ByteArrayOutputStream();
+		generationStream.write(mapsforgeTaskConfig.getCheckSum().getBytes(StandardCharsets.UTF_8));
+		generationStream.write(renderThemeBytes);
+		return mapsforgeTaskConfig.checkSum(generationStream.toByteArray());
+	}
+
+	/*
+	 * ETags additionally change with modification of map files, tile archives and DEM folder
+	 * Last modification time covers task file and theme file, so that property or theme changes are recognized
+	 */
+	private Generation createGeneration(String generationId, long lastModified) throws Exception {
+		List<File> files = new ArrayList<File>();
+		files.addAll(mapsforgeTaskConfig.getMapFiles());
+		files.addAll(mapsforgeTaskConfig.getTileArchives());
+		if (mapsforgeTaskConfig.getDemFolder() != null) files.add(mapsforgeTaskConfig.getDemFolder());
+		StringBuilder validators = new StringBuilder(generationId);
+		for (File file : files) {
+			validators.append('|').append(file.getPath()).append('|').append(file.length()).append('|').append(file.lastModified());
+			lastModified = Math.max(lastModified, file.lastModified());
 		}
+		lastModified = Math.max(lastModified, mapsforgeTaskConfig.getTaskFile().lastModified());
+		if (themeFile != null) lastModified = Math.max(lastModified, themeFile.lastModified());
+		String entityTagPrefix = mapsforgeTaskConfig.checkSum(validators.toString().getBytes(StandardCharsets.UTF_8));
+		return new Generation(generationId, entityTagPrefix, lastModified);
+	}
 
+	/*
+	 * Strong ETag of tile, stable across server restarts as long as its validators don't change
+	 */
+	private static String getEntityTag(Generation generation, TileRenderKey tileRenderKey) {
+		return "\"" + generation.entityTagPrefix + "-" + Integer.toHexString(tileRenderKey.hashCode()) + "\""; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	/*
+	 * Whether client already has tile, If-None-Match takes precedence over If-Modified-Since
+	 */
+	private static boolean isNotModified(HttpServletRequest request, String entityTag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match"); //$NON-NLS-1$
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) { //$NON-NLS-1$
+				tag = tag.trim();
+				if (tag.startsWith("W/")) tag = tag.substring(2); //$NON-NLS-1$
+				if (tag.equals("*") || tag.equals(entityTag)) return true; //$NON-NLS-1$
+			}
+			return false;
+		}
+		try {
+			long ifModifiedSince = request.getDateHeader("If-Modified-Since"); //$NON-NLS-1$
+			return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Display model scales are static, i.e. shared by all tasks.
+	 * Set them to task's values for compiling render theme
+	 * and wait while other tasks compile render themes with different scales.
+	 */
+	private void acquireDisplayModelScales() throws InterruptedException {
+		String scales = mapsforgeTaskConfig.getDeviceScale() + "|" + mapsforgeTaskConfig.getTextScale() + "|" //$NON-NLS-1$ //$NON-NLS-2$
+				+ mapsforgeTaskConfig.getSymbolScale() + "|" + mapsforgeTaskConfig.getLineScale(); //$NON-NLS-1$
+		synchronized (displayModelScalesLock) {
+			while (displayModelScalesUsers > 0 && !scales.equals(displayModelScales)) displayModelScalesLock.wait();
+			if (!scales.equals(displayModelScales)) {
+				DisplayModel.setDeviceScaleFactor(mapsforgeTaskConfig.getDeviceScale());
+				DisplayModel.textScale = mapsforgeTaskConfig.getTextScale();
+				DisplayModel.symbolScale = mapsforgeTaskConfig.getSymbolScale();
+				DisplayModel.lineScale = mapsforgeTaskConfig.getLineScale();
+				displayModelScales = scales;
+			}
+			displayModelScalesUsers++;
+		}
+	}
+
+	private static void releaseDisplayModelScales() {
+		synchronized (displayModelScalesLock) {
+			displayModelScalesUsers--;
+			displayModelScalesLock.notifyAll();
+		}
+	}
+
+	/*
+	 * Read render theme again from theme file and compile it for task's userScale
+	 * Compiled render themes no longer used are dropped
+	 * Tiles previously rendered become invalid, both in tile cache and at clients
+	 */
+	protected void updateRenderThemeFuture() throws Exception {
+		if (!taskEnabled) return;
+		byte[] bytes = readRenderTheme();
+		synchronized (compiledRenderThemes) {
+			renderThemeBytes = bytes;
+			renderThemeKey = createRenderThemeKey();
+			releaseCompiledRenderThemes();
+		}
+		getCompiledRenderTheme(mapsforgeTaskConfig.getUserScale());
+		// Theme is updated first, so that tiles rendered in new generation use updated theme
+		// Symbols referenced by theme may have changed even if theme file didn't, so every update starts a new generation
+		// Tile cache opens same generation, tiles of other generations are dropped or become stale
+		long updateTime = System.currentTimeMillis();
+		String generationId = createGenerationId() + "." + updateTime; //$NON-NLS-1$
+		generationLock.writeLock().lock();
+		try {
+			MapsforgeTileCache mapsforgeTileCache = mapsforgeHandler.getTileCache();
+			if (mapsforgeTileCache != null) mapsforgeTileCache.openTask(name, generationId);
+			generation = createGeneration(generationId, updateTime);
+			// Renders of previous generation finish for their clients, but aren't joined by further requests
+			runningRenders.clear();
+		} finally {
+			generationLock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Release resources shared with other tasks when task is removed
+	 */
+	protected void destroy() {
+		synchronized (compiledRenderThemes) {
+			releaseCompiledRenderThemes();
+		}
+		for (MBTilesReader mbTilesReader : tileArchives) mbTilesReader.close();
+		synchronized (sharedMapFiles) {
+			for (SharedMapFile sharedMapFile : sharedMapFiles)
+				mapsforgeHandler.getMapFileRegistry().release(sharedMapFile.key);
+			sharedMapFiles.clear();
+		}
+	}
+
+	private MapFile acquireMapFile(SharedMapFile sharedMapFile) {
+		synchronized (sharedMapFiles) {
+			sharedMapFiles.add(sharedMapFile);
+		}
+		return sharedMapFile.mapFile;
+	}
+
+	private void releaseCompiledRenderThemes() {
+		for (CompiledRenderTheme compiledRenderTheme : compiledRenderThemes.values())
+			mapsforgeHandler.getRenderThemeCache().release(compiledRenderTheme.key);
+		compiledRenderThemes.clear();
+	}
+
+	/*
+	 * Display model and render theme compiled for userScale, taken from server-wide render theme cache
+	 * or compiled in background on first use
+	 * Jobs rendered with different userScale values don't affect each other
+	 * Compilation reads static display model scales, so task's scales are held until compilation is done
+	 */
+	private CompiledRenderTheme getCompiledRenderTheme(float userScale) throws InterruptedException {
+		synchronized (compiledRenderThemes) {
+			CompiledRenderTheme compiledRenderTheme = compiledRenderThemes.get(userScale);
+			if (compiledRenderTheme == null) {
+				XmlRenderTheme scaledXmlRenderTheme = createXmlRenderTheme();
+				boolean[] compiling = { false };
+				acquireDisplayModelScales();
+				try {
+					compiledRenderTheme = mapsforgeHandler.getRenderThemeCache().acquire(renderThemeKey + "|" + userScale, () -> { //$NON-NLS-1$
+						DisplayModel displayModel = new DisplayModel();
+						displayModel.setUserScaleFactor(userScale);
+						RenderThemeFuture renderThemeFuture = new RenderThemeFuture(mapsforgeHandler.getGraphicFactory(),
+								scaledXmlRenderTheme, displayModel);
+						new Thread(null, () -> {
+							try {
+								renderThemeFuture.run();
+							} finally {
+								releaseDisplayModelScales();
+							}
+						}, "RenderThemeFuture-" + name + "-" + userScale).start(); //$NON-NLS-1$ //$NON-NLS-2$
+						compiling[0] = true;
+						logger.debug("Render theme of task '" + name + "' compiled for userScale " + userScale); //$NON-NLS-1$
+						return new CompiledRenderTheme(displayModel, renderThemeFuture);
+					});
+				} finally {
+					// Render theme taken from cache is compiled already
+					if (!compiling[0]) releaseDisplayModelScales();
+				}
+				compiledRenderThemes.put(userScale, compiledRenderTheme);
+			}
+			return compiledRenderTheme;
+		}
+	}
+
+	/*
+	 * Key identifying compiled render theme apart from userScale:
+	 * render theme content and location, style, overlays and display model scales
+	 */
+	private String createRenderThemeKey() throws Exception {
+		String[] themeFileOverlays = mapsforgeTaskConfig.getThemeFileOverlays();
+		return mapsforgeTaskConfig.checkSum(renderThemeBytes) + "|" + xmlRenderTheme.getRelativePathPrefix() //$NON-NLS-1$
+				+ "|" + (xmlRenderThemeMenuCallback == null ? "" : themeFileStyle + "|" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				+ (themeFileOverlays == null ? "" : String.join(",", themeFileOverlays))) //$NON-NLS-1$ //$NON-NLS-2$
+				+ "|" + mapsforgeTaskConfig.getDeviceScale() + "|" + mapsforgeTaskConfig.getTextScale() //$NON-NLS-1$ //$NON-NLS-2$
+				+ "|" + mapsforgeTaskConfig.getSymbolScale() + "|" + mapsforgeTaskConfig.getLineScale(); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/*
+	 * Read render theme and let its built-in hillshading zoom levels override
+	 */
+	private byte[] readRenderTheme() throws Exception {
 		InputStream inputStream = xmlRenderTheme.getRenderThemeAsStream();
 		byte[] renderThemeBytes = inputStream.readAllBytes();
 		String renderThemeString = new String(renderThemeBytes, StandardCharsets.UTF_8);
 		inputStream.close();
 
-		// Let render theme's built-in hillshading zoom levels override
 		Pattern hsPattern = Pattern.compile("(.*)(<hillshading\\s.*?>)(.*)",Pattern.DOTALL);
 		Matcher hsMatcher = hsPattern.matcher(renderThemeString);
 		if (hsMatcher.matches()) {	// Built-in hillshading found
@@ -329,73 +653,70 @@ public class MapsforgeTaskHandler {
 			hsProperty = "<hillshading zoom-min=\"" + hsZoomMin + "\" zoom-max=\"" + hsZoomMax + "\" magnitude=\"128\" />";
 			renderThemeString = hsMatcher.group(1) + hsProperty + hsMatcher.group(3);
 			renderThemeBytes = renderThemeString.getBytes(StandardCharsets.UTF_8);
-			String relativePathPrefix = xmlRenderTheme.getRelativePathPrefix();
-			inputStream = new ByteArrayInputStream(renderThemeBytes);
-			xmlRenderTheme = new StreamRenderTheme(relativePathPrefix, inputStream);
-			inputStream.close();
-		}
-
-		// Does render theme has a style menu? yes: set callback, no: no callback
-		switch (showStyleNames(renderThemeBytes)) {
-		case 1:
-			xmlRenderTheme.setMenuCallback(menuCallBack);
-			countDownLatch = new CountDownLatch(1);
-			break;
-		case -1:
-			logger.error("Defined style '" + themeFileStyle+"' not available: Task " + name + " disabled"); //$NON-NLS-1$
-			taskEnabled = false;
-			return;
-		};
-
-		updateRenderThemeFuture();
-		countDownLatch.await();
-		logger.info("--------------------------------------------------"); //$NON-NLS-1$
-	}
-
-	protected void updateRenderThemeFuture() {
-		renderThemeFuture = new RenderThemeFuture(mapsforgeHandler.getGraphicFactory(), xmlRenderTheme, displayModel);
-		String tname = "RenderThemeFuture-"+name;
-		for (Thread t : Thread.getAllStackTraces().keySet()) {
-			if (t.getName().equals(tname)) {
-				t.interrupt();
-				logger.debug("Thread '"+tname+"' successfully stopped.");
-			}
 		}
-		new Thread(null,renderThemeFuture,tname).start();
+		return renderThemeBytes;
 	}
 
-	protected void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws Exception {
+	/*
+	 * Render theme to be compiled once more
+	 * Render theme is provided by a new stream each time, since a stream can be read only once
+	 * Menu callback is set per task, since internal render themes are shared by all tasks
+	 */
+	private XmlRenderTheme createXmlRenderTheme() {
+		StreamRenderTheme streamRenderTheme = new StreamRenderTheme(xmlRenderTheme.getRelativePathPrefix(),
+				new ByteArrayInputStream(renderThemeBytes));
+		streamRenderTheme.setMenuCallback(xmlRenderThemeMenuCallback);
+		streamRenderTheme.setResourceProvider(xmlRenderTheme.getResourceProvider());
+		return streamRenderTheme;
+	}
+
+	/*
+	 * Handle tile request, return future of tile to be written as response body
+	 * Future returns null if response is complete already
+	 * Cached tiles are returned at once, tiles to be rendered are queued to render scheduler
+	 */
+	protected CompletableFuture<byte[]> handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response,
+			ClientConnection clientConnection) throws Exception {
+		long startTime = System.nanoTime();
 		String path = request.getPathInfo();
 		String engine = "std";
 
 		if (!taskEnabled) {
 			logger.error("Task "+name+" disabled. Invalid tile request: "+path); //$NON-NLS-1$
 			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			return;
+			return CompletableFuture.completedFuture(null);
 		}
 
 		int x, y, z;
 		String ext = MapsforgeConfig.TILE_EXTENSION; // $NON-NLS-1$
+		boolean negotiated = false;
 		Matcher m = requestPathPattern.matcher(path);
 		if (m.matches()) {
 			x = Integer.parseInt(m.group(2));
 			y = Integer.parseInt(m.group(3));
 			z = Integer.parseInt(m.group(1));
-			if (m.group(4) != null) ext = m.group(4);
+			if (m.group(4) != null) {
+				ext = m.group(4);
+			} else {
+				// Format of requests without extension depends on Accept header
+				negotiated = true;
+				String accept = request.getHeader("Accept"); //$NON-NLS-1$
+				if (accept != null && accept.contains("image/" + MapsforgeConfig.TILE_FORMAT_WEBP)) ext = MapsforgeConfig.TILE_FORMAT_WEBP; //$NON-NLS-1$
+			}
 		} else {
 			logger.error("Invalid tile request: "+path); //$NON-NLS-1$
 			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			return;
+			return CompletableFuture.completedFuture(null);
 		}
 		if (x < 0 || x >= (1 << z)) {
 			logger.error("Tile number x=" + x + " out of range!"); //$NON-NLS-1$
 			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			return;
+			return CompletableFuture.completedFuture(null);
 		}
 		if (y < 0 || y >= (1 << z)) {
 			logger.error("Tile number y=" + y + " out of range!"); //$NON-NLS-1$
 			response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-			return;
+			return CompletableFuture.completedFuture(null);
 		}
 
 		float requestedTextScale = 1.0f; // Original text scaling comes from config value
@@ -404,7 +725,7 @@ public class MapsforgeTaskHandler {
 			if (tmp != null) {
 //				Override text scaling from config value by text scaling from HTTP request
 //				Final text scaling = textScale * requestedTextScale
-				requestedTextScale = Float.parseFloat(tmp) / DisplayModel.textScale;
+				requestedTextScale = Float.parseFloat(tmp) / mapsforgeTaskConfig.getTextScale();
 			}
 		} catch (Exception e) {
 			throw new ServletException("Failed to parse \"textScale\" property: " + e.getMessage(), e); //$NON-NLS-1$
@@ -438,69 +759,99 @@ public class MapsforgeTaskHandler {
 			throw new ServletException("Failed to parse \"tileRenderSize\" property: " + e.getMessage(), e); //$NON-NLS-1$
 		}
 
-		TileBitmap tileBitmap = null;
-		Tile tile = new Tile(x, y, (byte) z, requestedTileRenderSize);
-		if (multiMapDataStore.supportsTile(tile)) {
-			boolean enable_hs = true;
-			try {
-				String tmp = request.getParameter("hillshading"); //$NON-NLS-1$
-				if (tmp != null) enable_hs = Integer.parseInt(tmp) != 0; //$NON-NLS-1$
-			} catch (Exception e) {
-				throw new ServletException("Failed to parse \"hillshading\" property: " + e.getMessage(), e); //$NON-NLS-1$
-			}
-			if (hillsRenderConfig != null && enable_hs) engine = "hs";
-
-			// requestedUserScale = 2.0f; // Uncomment for testing purpose only!
-//			Calling "displayModel.setUserScaleFactor" alone has no visible impact on rendering.
-//			Starting new "renderThemeFuture" afterwards helps, but can significantly impact rendering performance
-//			if different TMS clients take turns requesting different userScale values !!!
-			if (displayModel.getUserScaleFactor() != requestedUserScale) {
-				displayModel.setUserScaleFactor (requestedUserScale);
-				updateRenderThemeFuture();
-			}
-
-			RendererJob job = new RendererJob(tile, multiMapDataStore, renderThemeFuture, displayModel,
-				requestedTextScale, requestedTransparent, false);
+		boolean enable_hs = true;
+		try {
+			String tmp = request.getParameter("hillshading"); //$NON-NLS-1$
+			if (tmp != null) enable_hs = Integer.parseInt(tmp) != 0; //$NON-NLS-1$
+		} catch (Exception e) {
+			throw new ServletException("Failed to parse \"hillshading\" property: " + e.getMessage(), e); //$NON-NLS-1$
+		}
+		if (hillsRenderConfig != null && enable_hs) engine = "hs";
 
-//Synchronizing render jobs has no visible effect -> disabled
-//				synchronized (this) {
-				tileBitmap = databaseRenderer.get(engine).executeJob(job);
-				if (!hillShadingOverlay) tileCache.put(job, null);
-//				}
+		// Prefetching browsers announce speculative requests by header
+		int priority = RenderScheduler.PRIORITY_INTERACTIVE;
+		String purpose = request.getHeader("Sec-Purpose"); //$NON-NLS-1$
+		if (purpose == null) purpose = request.getHeader("Purpose"); //$NON-NLS-1$
+		if (purpose != null && purpose.contains("prefetch")) priority = RenderScheduler.PRIORITY_BACKGROUND; //$NON-NLS-1$
+		String tmpPriority = request.getParameter("priority"); //$NON-NLS-1$
+		if (tmpPriority != null) {
+			priority = Arrays.asList(RenderScheduler.PRIORITIES).indexOf(tmpPriority);
+			if (priority < 0) throw new ServletException("Failed to parse \"priority\" property: " + tmpPriority); //$NON-NLS-1$
 		}
 
-		BufferedImage image;
-		if (tileBitmap != null) {
-			image = AwtGraphicFactory.getBitmap(tileBitmap); // image type is TYPE_INT_RGB
-			//int imageType = image.getType(); // returns 1 (TYPE_INT_RGB)
-			int imageWidth  = image.getWidth();
-			int imageHeight = image.getHeight();
-			//int dataBufferType = image.getRaster().getDataBuffer().getDataType(); // returns 3 (TYPE_INT)
-			// DataBuffer created by Mapsforge renderer is of type DataBufferInt,
-			// i.e. one int value 0xaarrggbb per pixel
-			DataBufferInt dataBuffer = (DataBufferInt) image.getRaster().getDataBuffer();
-			int[] pixelArray = dataBuffer.getData();
-			int pixelValue;
-			int pixelCount = imageWidth * imageHeight;
-			if (hillShadingOverlay) { // transparent hillshading overlay image requested
-				BufferedImage newImage = new BufferedImage (imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
-				DataBufferInt newDataBuffer = (DataBufferInt) newImage.getRaster().getDataBuffer();
-				int[] newPixelArray = newDataBuffer.getData();
-				while (pixelCount-- > 0) {
-					pixelValue = pixelArray[pixelCount];
-					newPixelArray[pixelCount] = colorLookupTable[pixelValue & 0xff];
+		TileRenderKey tileRenderKey = new TileRenderKey(name, x, y, z, requestedTileRenderSize, requestedUserScale,
+				requestedTextScale, requestedTransparent, engine, ext);
+		renderMetrics.record(RenderMetrics.STAGE_PARSE, z, engine, System.nanoTime() - startTime);
+
+		// Generation can't change until tile is looked up and answered, so that tile and its validators match
+		// Tile rendered later is at least as new as generation its validators are taken from
+		Generation tileGeneration;
+		generationLock.readLock().lock();
+		try {
+			tileGeneration = generation;
+			// Revalidation of unchanged tile is answered without looking up or rendering it
+			String entityTag = getEntityTag(tileGeneration, tileRenderKey);
+			if (isNotModified(request, entityTag, tileGeneration.lastModified)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				response.setHeader("ETag", entityTag); //$NON-NLS-1$
+				if (mapsforgeConfig.getCacheControl() > 0) {
+					response.addHeader("Cache-Control", "public, max-age=" + mapsforgeConfig.getCacheControl()); //$NON-NLS-1$ //$NON-NLS-2$
 				}
-				image = newImage; // return transparent overlay image instead of original image
-			} else if (colorLookupTable != null) { // apply gamma correction and/or contrast-stretching
-				while (pixelCount-- > 0) {
-					pixelValue = pixelArray[pixelCount];
-					pixelArray[pixelCount] = (pixelValue & 0xff000000) // alpha value
-							| (colorLookupTable[(pixelValue >>> 16) & 0xff] << 16) // red value
-							| (colorLookupTable[(pixelValue >>> 8) & 0xff] << 8) // green value
-							| (colorLookupTable[pixelValue & 0xff]); // blue value
+				if (negotiated) response.addHeader("Vary", "Accept"); //$NON-NLS-1$ //$NON-NLS-2$
+				return CompletableFuture.completedFuture(null);
+			}
+
+			request.setAttribute(TILE_RENDER_KEY_ATTRIBUTE, tileRenderKey);
+			MapsforgeTileCache mapsforgeTileCache = mapsforgeHandler.getTileCache();
+			byte[] tileBytes = null;
+			if (!tileArchives.isEmpty()) tileBytes = readTileArchives(tileRenderKey);
+			if (tileBytes == null && mapsforgeTileCache != null) tileBytes = mapsforgeTileCache.get(tileRenderKey);
+			if (tileBytes != null) return CompletableFuture.completedFuture(respond(response, tileRenderKey, tileBytes, tileGeneration, negotiated, false));
+
+			// Tile cached before task or theme update is served at once and re-rendered in background
+			TileRevalidator tileRevalidator = mapsforgeHandler.getTileRevalidator();
+			if (tileRevalidator != null) {
+				tileBytes = mapsforgeTileCache.getStale(tileRenderKey);
+				if (tileBytes != null) {
+					tileRevalidator.request(tileRenderKey);
+					return CompletableFuture.completedFuture(respond(response, tileRenderKey, tileBytes, tileGeneration, negotiated, true));
 				}
 			}
+		} finally {
+			generationLock.readLock().unlock();
+		}
+
+		boolean negotiatedFormat = negotiated;
+		RenderScheduler renderScheduler = mapsforgeHandler.getRenderScheduler();
+		CompletableFuture<byte[]> tileFuture = renderTileAsync(tileRenderKey, priority, clientConnection, renderScheduler);
+		if (metaTile > 1) tileFuture.thenRun(() -> prefetchBlock(tileRenderKey, renderScheduler));
+		return tileFuture.thenApply(renderedBytes -> {
+			try {
+				return respond(response, tileRenderKey, renderedBytes, tileGeneration, negotiatedFormat, false);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	/*
+	 * Set response headers of tile, return tile to be written as response body
+	 * Tile not covered by map data is answered by redirect to out-of-range server or by empty tile
+	 * Stale tile is answered without validators and must not be reused by clients without asking again
+	 */
+	private byte[] respond(HttpServletResponse response, TileRenderKey tileRenderKey, byte[] tileBytes, Generation tileGeneration,
+			boolean negotiated, boolean stale) throws IOException {
+		int x = tileRenderKey.getX();
+		int y = tileRenderKey.getY();
+		int z = tileRenderKey.getZ();
+		String ext = tileRenderKey.getExt();
+		if (stale) {
 			response.setStatus(HttpServletResponse.SC_OK);
+			response.setHeader("Warning", "110 - \"Response is Stale\""); //$NON-NLS-1$ //$NON-NLS-2$
+		} else if (tileBytes != null) {
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setHeader("ETag", getEntityTag(tileGeneration, tileRenderKey)); //$NON-NLS-1$
+			response.setDateHeader("Last-Modified", tileGeneration.lastModified); //$NON-NLS-1$
 		} else {
 			String outOfRangeTms = mapsforgeConfig.getOutOfRangeTms();;
 			if(outOfRangeTms != null) {
@@ -509,34 +860,342 @@ public class MapsforgeTaskHandler {
 				response.setHeader("Location", redirecturl);
 				response.flushBuffer();
 				logger.info("out-of-range redirect '"+redirecturl+"'");
-				return;
+				return null;
 			} else {
-				image = MapsforgeConfig.BI_NOCONTENT;
+				tileBytes = encodeImage(MapsforgeConfig.BI_NOCONTENT, ext);
 				response.setStatus(HttpServletResponse.SC_NOT_FOUND);
 			}
 		}
-		if (mapsforgeConfig.getCacheControl() > 0) {
+		if (stale) {
+			response.addHeader("Cache-Control", "no-cache"); //$NON-NLS-1$ //$NON-NLS-2$
+		} else if (mapsforgeConfig.getCacheControl() > 0) {
 			response.addHeader("Cache-Control", "public, max-age=" + mapsforgeConfig.getCacheControl()); //$NON-NLS-1$ //$NON-NLS-2$
 		}
-		response.setContentType("image/" + ext); //$NON-NLS-1$
+		if (negotiated) response.addHeader("Vary", "Accept"); //$NON-NLS-1$ //$NON-NLS-2$
+		response.setContentType("image/" + (ext.equals(MapsforgeConfig.TILE_FORMAT_PNG8) ? "png" : ext)); //$NON-NLS-1$ //$NON-NLS-2$
+		response.setContentLength(tileBytes.length);
+		return tileBytes;
+	}
+
+	/*
+	 * Read tile from first tile archive containing it
+	 * Archives are assumed to contain tiles rendered with task's default properties
+	 * Return null if tile has to be rendered
+	 */
+	private byte[] readTileArchives(TileRenderKey tileRenderKey) {
+		TileRenderKey defaultKey = getDefaultTileRenderKey(tileRenderKey.getX(), tileRenderKey.getY(), tileRenderKey.getZ());
+		if (tileRenderKey.getTileRenderSize() != defaultKey.getTileRenderSize()
+				|| tileRenderKey.getUserScale() != defaultKey.getUserScale()
+				|| tileRenderKey.getTextScale() != defaultKey.getTextScale()
+				|| tileRenderKey.getTransparent() != defaultKey.getTransparent()
+				|| !tileRenderKey.getEngine().equals(defaultKey.getEngine())) return null;
+		for (MBTilesReader mbTilesReader : tileArchives) {
+			if (!mbTilesReader.getFormat().equals(tileRenderKey.getExt())) continue;
+			try {
+				byte[] tileBytes = mbTilesReader.get(tileRenderKey.getX(), tileRenderKey.getY(), tileRenderKey.getZ());
+				if (tileBytes != null) return tileBytes;
+			} catch (SQLException e) {
+				logger.warn("Can't read tile " + tileRenderKey + " from '" + mbTilesReader.getFile() + "': " + e.getMessage()); //$NON-NLS-1$
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Render tile and put it into tile cache.
+	 * Concurrent requests for a tile being rendered wait for this single rendering instead of rendering again.
+	 */
+	protected byte[] renderTileOnce(TileRenderKey tileRenderKey) throws Exception {
+		RunningRender runningRender = new RunningRender(null);
+		RunningRender joinedRender = joinRunningRender(tileRenderKey, runningRender, null);
+		if (joinedRender != runningRender) return joinedRender.future.get();
+		try {
+			byte[] tileBytes = renderAndCacheTile(tileRenderKey, runningRender);
+			runningRender.future.complete(tileBytes);
+			return tileBytes;
+		} catch (Throwable t) {
+			runningRender.future.completeExceptionally(t);
+			throw t;
+		} finally {
+			runningRenders.remove(tileRenderKey, runningRender);
+		}
+	}
+
+	/*
+	 * Same as renderTileOnce, but render by render scheduler without blocking calling thread
+	 * Returned future fails with RejectedExecutionException if render scheduler is saturated
+	 * Interactive request waiting for queued background render of same tile promotes that render
+	 * Render is dropped or abandoned with CancellationException once all clients waiting for it have gone
+	 */
+	protected CompletableFuture<byte[]> renderTileAsync(TileRenderKey tileRenderKey, int priority, ClientConnection clientConnection,
+			RenderScheduler renderScheduler) {
+		RunningRender newRender = new RunningRender(clientConnection);
+		RunningRender joinedRender = joinRunningRender(tileRenderKey, newRender, clientConnection);
+		if (joinedRender != newRender) {
+			if (priority == RenderScheduler.PRIORITY_INTERACTIVE) renderScheduler.promote(joinedRender.future);
+			return joinedRender.future;
+		}
+		newRender.future.whenComplete((tileBytes, t) -> runningRenders.remove(tileRenderKey, newRender));
+		renderScheduler.submit(name, priority, () -> renderAndCacheTile(tileRenderKey, newRender), newRender.future);
+		return newRender.future;
+	}
+
+	/*
+	 * Prefetch tiles of metatile block containing tile requested by client
+	 * Each tile neither cached nor being rendered is rendered by a render of its own in background lane,
+	 * so that prefetching neither delays interactive renders nor keeps a render thread busy for a whole block
+	 * Prefetch pushed out of or rejected by saturated render queue is just dropped
+	 */
+	private void prefetchBlock(TileRenderKey tileRenderKey, RenderScheduler renderScheduler) {
+		MapsforgeTileCache mapsforgeTileCache = mapsforgeHandler.getTileCache();
+		int tileCount = 1 << tileRenderKey.getZ();
+		int xMin = tileRenderKey.getX() / metaTile * metaTile;
+		int yMin = tileRenderKey.getY() / metaTile * metaTile;
+		int xMax = Math.min(xMin + metaTile, tileCount);
+		int yMax = Math.min(yMin + metaTile, tileCount);
+		for (int y = yMin; y < yMax; y++) {
+			for (int x = xMin; x < xMax; x++) {
+				TileRenderKey key = new TileRenderKey(tileRenderKey.getTask(), x, y, tileRenderKey.getZ(),
+						tileRenderKey.getTileRenderSize(), tileRenderKey.getUserScale(), tileRenderKey.getTextScale(),
+						tileRenderKey.getTransparent(), tileRenderKey.getEngine(), tileRenderKey.getExt());
+				if (runningRenders.containsKey(key) || mapsforgeTileCache.contains(key)) continue;
+				renderTileAsync(key, RenderScheduler.PRIORITY_BACKGROUND, null, renderScheduler);
+			}
+		}
+	}
+
+	/*
+	 * Join running render of tile and return it
+	 * Otherwise register new render of tile, to be started by caller, and return new render
+	 * Null client can't go, so render joined by null client is never cancelled
+	 */
+	private RunningRender joinRunningRender(TileRenderKey tileRenderKey, RunningRender newRender,
+			ClientConnection clientConnection) {
+		while (true) {
+			RunningRender runningRender = runningRenders.putIfAbsent(tileRenderKey, newRender);
+			if (runningRender == null) return newRender;
+			if (runningRender.join(clientConnection)) {
+				coalescedRenders.incrementAndGet();
+				logger.debug("Tile " + tileRenderKey + " waits for running render"); //$NON-NLS-1$
+				return runningRender;
+			}
+			// Cancelled render can't be joined anymore
+			runningRenders.remove(tileRenderKey, runningRender);
+		}
+	}
+
+	/*
+	 * Safe point of render: abandon render if all clients waiting for it have gone
+	 */
+	private void checkCancelled(RunningRender runningRender, TileRenderKey tileRenderKey) {
+		if (!runningRender.isCancelled()) return;
+		renderMetrics.recordCancelled(runningRender.startTime != 0, System.nanoTime() - runningRender.startTime);
+		throw new CancellationException("Tile " + tileRenderKey + " no longer requested"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/*
+	 * Render tile and put it into tile cache
+	 */
+	private byte[] renderAndCacheTile(TileRenderKey tileRenderKey, RunningRender runningRender) throws Exception {
+		// Render waiting in queue for clients gone meanwhile is dropped right away
+		checkCancelled(runningRender, tileRenderKey);
+		runningRender.startTime = System.nanoTime();
+		// Taken before render theme, so that tiles of an outdated theme aren't cached for updated theme
+		String renderGeneration = generation.id;
+		byte[] tileBytes = renderTile(tileRenderKey, runningRender);
+		cacheTile(tileRenderKey, tileBytes, renderGeneration);
+		renderMetrics.recordRender(System.nanoTime() - runningRender.startTime);
+		return tileBytes;
+	}
+
+	/*
+	 * Put rendered tile into tile cache unless generation changed since its render started
+	 */
+	private void cacheTile(TileRenderKey tileRenderKey, byte[] tileBytes, String renderGeneration) {
+		MapsforgeTileCache mapsforgeTileCache = mapsforgeHandler.getTileCache();
+		if (tileBytes == null || mapsforgeTileCache == null) return;
+		generationLock.readLock().lock();
+		try {
+			if (renderGeneration.equals(generation.id)) mapsforgeTileCache.put(tileRenderKey, tileBytes);
+		} finally {
+			generationLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Render tile and return encoded image
+	 * Return null if tile is not covered by task's map data
+	 */
+	protected byte[] renderTile(TileRenderKey tileRenderKey, RunningRender runningRender) throws Exception {
+		checkCancelled(runningRender, tileRenderKey);
+		TileBitmap tileBitmap = null;
+		Tile tile = new Tile(tileRenderKey.getX(), tileRenderKey.getY(), (byte) tileRenderKey.getZ(), tileRenderKey.getTileRenderSize());
+		int zoom = tileRenderKey.getZ();
+		String engine = tileRenderKey.getEngine();
+		long startTime = System.nanoTime();
+		boolean supportsTile = multiMapDataStore.supportsTile(tile);
+		renderMetrics.record(RenderMetrics.STAGE_SUPPORTS_TILE, zoom, engine, System.nanoTime() - startTime);
+		if (supportsTile) {
+			// Rendering itself can't be interrupted, so last safe point before it
+			checkCancelled(runningRender, tileRenderKey);
+			// Render theme depends on userScale, so each userScale value needs its own compiled render theme
+			CompiledRenderTheme compiledRenderTheme = getCompiledRenderTheme(tileRenderKey.getUserScale());
+			RendererJob job = new RendererJob(tile, multiMapDataStore, compiledRenderTheme.renderThemeFuture,
+				compiledRenderTheme.displayModel, tileRenderKey.getTextScale(), tileRenderKey.getTransparent(), false);
+
+//Synchronizing render jobs has no visible effect -> disabled
+//				synchronized (this) {
+				startTime = System.nanoTime();
+				tileBitmap = databaseRenderer.get(engine).executeJob(job);
+				renderMetrics.record(RenderMetrics.STAGE_RENDER, zoom, engine, System.nanoTime() - startTime);
+				if (!hillShadingOverlay) tileCache.put(job, null);
+//				}
+		}
+		if (tileBitmap == null) return null;
+		checkCancelled(runningRender, tileRenderKey);
+
+		BufferedImage image = AwtGraphicFactory.getBitmap(tileBitmap); // image type is TYPE_INT_RGB
+		int imageWidth  = image.getWidth();
+		int imageHeight = image.getHeight();
+		// DataBuffer created by Mapsforge renderer is of type DataBufferInt,
+		// i.e. one int value 0xaarrggbb per pixel, post-processed in place
+		int[] pixelArray = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		boolean alpha = image.getColorModel().hasAlpha();
+		if (pixelPipeline != null) { // hillshading overlay or gamma correction and/or contrast-stretching
+			startTime = System.nanoTime();
+			pixelPipeline.apply(pixelArray, imageWidth * imageHeight);
+			alpha |= pixelPipeline.hasAlpha();
+			renderMetrics.record(RenderMetrics.STAGE_POSTPROCESS, zoom, engine, System.nanoTime() - startTime);
+		}
+		startTime = System.nanoTime();
+		byte[] tileBytes = encodeImage(pixelArray, imageWidth, imageHeight, alpha, tileRenderKey.getExt());
+		renderMetrics.record(RenderMetrics.STAGE_ENCODE, zoom, engine, System.nanoTime() - startTime);
+		return tileBytes;
+	}
+
+	private byte[] encodeImage(BufferedImage image, String ext) throws IOException {
+		return encodeImage(PngEncoder.getPixels(image), image.getWidth(), image.getHeight(), image.getColorModel().hasAlpha(), ext);
+	}
+
+	/*
+	 * PNG and WebP tiles are encoded by own encoders, other formats by ImageIO
+	 * Colors of png8 tiles and lossy WebP tiles are quantized before encoding
+	 */
+	private byte[] encodeImage(int[] pixels, int width, int height, boolean alpha, String ext) throws IOException {
+		if (ext.equals("png")) return pngEncoder.encode(pixels, width, height, alpha); //$NON-NLS-1$
+		boolean png8 = ext.equals(MapsforgeConfig.TILE_FORMAT_PNG8);
+		if (png8 || ext.equals(MapsforgeConfig.TILE_FORMAT_WEBP)) {
+			if (png8 || !mapsforgeTaskConfig.getWebpLossless())
+				pixels = ColorQuantizer.quantize(pixels, width * height, mapsforgeTaskConfig.getQuantizeColors(), alpha);
+			return png8 ? pngEncoder.encode(pixels, width, height, alpha) : webpEncoder.encode(pixels, width, height, alpha);
+		}
+		// Pixels are wrapped by image without copying
+		DirectColorModel colorModel = alpha ? (DirectColorModel) ColorModel.getRGBdefault()
+				: new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+		WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, width * height), width, height, width,
+				colorModel.getMasks(), null);
+		BufferedImage image = new BufferedImage(colorModel, raster, false, null);
 		int bufferSize = 256 + 4*image.getWidth()*image.getHeight(); // Assume image data size <= bufferSize
 		MyResponseBufferOutputStream responseBufferStream = new MyResponseBufferOutputStream(bufferSize);
-		ImageIO.write(image, ext, responseBufferStream);
-		responseBufferStream.flush(response);
+		if (!ImageIO.write(image, ext, responseBufferStream))
+			throw new IOException("Unsupported image format \"" + ext + "\""); //$NON-NLS-1$
 		responseBufferStream.close();
+		return responseBufferStream.toByteArray();
+	}
+
+	/*
+	 * Tile key with task's default render properties, as used for requests without query parameters
+	 */
+	protected TileRenderKey getDefaultTileRenderKey(int x, int y, int z) {
+		return getDefaultTileRenderKey(x, y, z, MapsforgeConfig.TILE_EXTENSION);
 	}
 
-	// Extend class ByteArrayOutputStream by setting content length on buffer flush
+	protected TileRenderKey getDefaultTileRenderKey(int x, int y, int z, String ext) {
+		return new TileRenderKey(name, x, y, z, MapsforgeConfig.DEFAULT_TILE_RENDERSIZE, mapsforgeTaskConfig.getUserScale(),
+				1.0f, MapsforgeConfig.DEFAULT_TRANSPARENT, hillsRenderConfig != null ? "hs" : "std", ext); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/*
+	 * Extent of task's map files, null if task has no map files
+	 */
+	public BoundingBox getBoundingBox() {
+		return multiMapDataStore.boundingBox();
+	}
+
+	public int getMetaTile() {
+		return metaTile;
+	}
+
+	public boolean getTaskEnabled() {
+		return taskEnabled;
+	}
+
+	public long getCoalescedRenders() {
+		return coalescedRenders.get();
+	}
+
+	public RenderMetrics getRenderMetrics() {
+		return renderMetrics;
+	}
+
+	/*
+	 * Render of tile in progress or waiting, and clients waiting for it
+	 * Render is cancelled once all clients have gone, unless joined by a caller without client
+	 */
+	protected static class RunningRender {
+		private final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		private final List<ClientConnection> clientConnections = new ArrayList<ClientConnection>();
+		private boolean cancellable = true;
+		private boolean cancelled = false;
+		// Start of rendering, 0 while waiting
+		private volatile long startTime = 0;
+
+		private RunningRender(ClientConnection clientConnection) {
+			join(clientConnection);
+		}
+
+		/*
+		 * Add client waiting for render, return false if render is cancelled already
+		 */
+		private synchronized boolean join(ClientConnection clientConnection) {
+			if (cancelled) return false;
+			if (clientConnection == null) {
+				cancellable = false;
+			} else {
+				clientConnections.add(clientConnection);
+			}
+			return true;
+		}
+
+		private synchronized boolean isCancelled() {
+			if (cancelled || !cancellable) return cancelled;
+			for (ClientConnection clientConnection : clientConnections)
+				if (!clientConnection.isGone()) return false;
+			cancelled = true;
+			return true;
+		}
+	}
+
+	/*
+	 * Generation of tiles and validators of its tiles, replaced as a whole
+	 */
+	private static class Generation {
+		private final String id;
+		private final String entityTagPrefix;
+		private final long lastModified;
+
+		private Generation(String id, String entityTagPrefix, long lastModified) {
+			this.id = id;
+			this.entityTagPrefix = entityTagPrefix;
+			this.lastModified = lastModified;
+		}
+	}
+
+	// Extend class ByteArrayOutputStream by preallocating buffer of expected size
 	private static class MyResponseBufferOutputStream extends ByteArrayOutputStream {
 		public MyResponseBufferOutputStream(int bufferSize) {
 			buf = new byte[bufferSize];
 		}
-		public void flush (HttpServletResponse response) throws IOException {
-			response.setContentLength(count);
-			ServletOutputStream responseOutputStream = response.getOutputStream();
-			responseOutputStream.write(buf, 0, count);
-			responseOutputStream.flush();
-		}
 	}
 
 	/**
@@ -579,7 +1238,6 @@ public class MapsforgeTaskHandler {
 
 	// Enumeration of all tile server's internal rendering themes
 	// (copied and extended from org/mapsforge/map/rendertheme/internal/MapsforgeThemes)
-	// Using StreamRenderThemes throws exception when calling "updateRenderThemeFuture" within "handle"
 	private enum MyMapsforgeThemes implements XmlRenderTheme {
 		DEFAULT("/assets/mapsforge/default.xml"),
 		OSMARENDER("/assets/mapsforge/osmarender.xml"),
@@ -0,0 +1,181 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-wide two-level cache of encoded tiles shared by all tasks:
+ * hot tiles in memory, all tiles on disk, each level optional.
+ * Each task stores its tiles below path "<task>/<generation>",
+ * where generation identifies task properties and render theme.
+ * A changed generation invalidates all tiles previously cached for the task.
+ * If stale tiles are kept, tiles of the task's previous generation are kept as stale tiles
+ * to be served until re-rendered, older generations are dropped.
+ */
+public class MapsforgeTileCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(MapsforgeTileCache.class);
+
+	private final TileMemoryCache memoryCache;
+	private final TileDiskCache diskCache;
+	// task name -> current generation
+	private final Map<String, String> generations = new ConcurrentHashMap<String, String>();
+	// task name -> previous generation, tiles of which are stale
+	private final Map<String, String> staleGenerations = new ConcurrentHashMap<String, String>();
+	private final boolean keepStale;
+
+	public MapsforgeTileCache(File folder, long maxDiskBytes, long maxMemoryBytes, boolean keepStale) {
+		this.keepStale = keepStale;
+		if (maxMemoryBytes > 0) {
+			memoryCache = new TileMemoryCache(maxMemoryBytes);
+			logger.info("Tile cache memory limited to " + (maxMemoryBytes >> 20) + " MB"); //$NON-NLS-1$
+		} else {
+			memoryCache = null;
+		}
+		if (folder != null) {
+			diskCache = new TileDiskCache(folder.toPath(), maxDiskBytes);
+			logger.info("Tile cache folder '" + folder + "' limited to " + (maxDiskBytes >> 20) + " MB"); //$NON-NLS-1$
+		} else {
+			diskCache = null;
+		}
+	}
+
+	/*
+	 * Start caching tiles of task, dropping tiles cached by any other generation
+	 * If stale tiles are kept, previous generation is kept as stale generation,
+	 * on server start that is the task's most recently modified generation in cache folder
+	 * Previous generation without tiles, e.g. of a task file changed twice in a row, keeps stale generation
+	 */
+	public void openTask(String task, String generation) {
+		String previous = generations.put(task, generation);
+		String stale = null;
+		if (keepStale) {
+			if (previous == null) {
+				if (diskCache != null) stale = diskCache.getLatestSubFolder(task, generation);
+			} else if (!previous.equals(generation) && hasTiles(task, previous)) {
+				stale = previous;
+			} else {
+				stale = staleGenerations.get(task);
+				if (generation.equals(stale)) stale = null;
+			}
+		}
+		if (stale != null) {
+			if (!stale.equals(staleGenerations.put(task, stale)))
+				logger.info("Tiles cached for task '" + task + "' before its update are served stale until re-rendered"); //$NON-NLS-1$
+		} else {
+			staleGenerations.remove(task);
+		}
+		String prefix = task + "/"; //$NON-NLS-1$
+		String keep = prefix + generation + "/"; //$NON-NLS-1$
+		String keepPrevious = stale != null ? prefix + stale + "/" : keep; //$NON-NLS-1$
+		if (memoryCache != null) memoryCache.remove(path -> path.startsWith(prefix) && !path.startsWith(keep) && !path.startsWith(keepPrevious));
+		if (diskCache != null) {
+			if (stale != null) {
+				diskCache.removeSubFolders(task, generation, stale);
+			} else {
+				diskCache.removeSubFolders(task, generation);
+			}
+		}
+	}
+
+	/*
+	 * Stop caching tiles of task and drop all tiles cached for task
+	 */
+	public void removeTask(String task) {
+		generations.remove(task);
+		staleGenerations.remove(task);
+		String prefix = task + "/"; //$NON-NLS-1$
+		if (memoryCache != null) memoryCache.remove(path -> path.startsWith(prefix));
+		if (diskCache != null) diskCache.removeSubFolders(task);
+	}
+
+	public byte[] get(TileRenderKey key) {
+		String path = getPath(key);
+		if (path == null) return null;
+		byte[] data = null;
+		if (memoryCache != null) data = memoryCache.get(path);
+		if (data == null && diskCache != null) {
+			data = diskCache.get(path);
+			if (data != null && memoryCache != null) memoryCache.put(path, data);
+		}
+		return data;
+	}
+
+	/*
+	 * Tile cached for task's stale generation, null if none
+	 * Stale tiles are not moved to memory, so that they don't evict current tiles
+	 * Looking up stale tiles doesn't count as cache miss
+	 */
+	public byte[] getStale(TileRenderKey key) {
+		String path = getStalePath(key);
+		if (path == null) return null;
+		byte[] data = null;
+		if (memoryCache != null && memoryCache.contains(path)) data = memoryCache.get(path);
+		if (data == null && diskCache != null && diskCache.contains(path)) data = diskCache.get(path);
+		return data;
+	}
+
+	/*
+	 * Drop tile cached for task's stale generation, e.g. once it has been re-rendered
+	 */
+	public void removeStale(TileRenderKey key) {
+		String path = getStalePath(key);
+		if (path == null) return;
+		if (memoryCache != null) memoryCache.remove(path);
+		if (diskCache != null) diskCache.remove(path);
+	}
+
+	public boolean contains(TileRenderKey key) {
+		String path = getPath(key);
+		if (path == null) return false;
+		return (memoryCache != null && memoryCache.contains(path)) || (diskCache != null && diskCache.contains(path));
+	}
+
+	public void put(TileRenderKey key, byte[] data) {
+		String path = getPath(key);
+		if (path == null) return;
+		if (memoryCache != null) memoryCache.put(path, data);
+		if (diskCache != null) diskCache.put(path, data);
+	}
+
+	/*
+	 * Wait until tiles cached on disk by previous runs are known
+	 */
+	public void awaitIndexed() throws InterruptedException {
+		if (diskCache != null) diskCache.awaitIndexed();
+	}
+
+	public boolean getKeepStale() {
+		return keepStale;
+	}
+
+	public TileMemoryCache getMemoryCache() {
+		return memoryCache;
+	}
+
+	public TileDiskCache getDiskCache() {
+		return diskCache;
+	}
+
+	private String getPath(TileRenderKey key) {
+		String generation = generations.get(key.getTask());
+		if (generation == null) return null;
+		return key.getTask() + "/" + generation + "/" + key.getPath(); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private boolean hasTiles(String task, String generation) {
+		String folder = task + "/" + generation; //$NON-NLS-1$
+		return (memoryCache != null && memoryCache.contains(path -> path.startsWith(folder + "/"))) //$NON-NLS-1$
+				|| (diskCache != null && diskCache.containsFolder(folder));
+	}
+
+	private String getStalePath(TileRenderKey key) {
+		String generation = staleGenerations.get(key.getTask());
+		if (generation == null) return null;
+		return key.getTask() + "/" + generation + "/" + key.getPath(); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
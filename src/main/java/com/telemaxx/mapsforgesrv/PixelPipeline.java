@@ -0,0 +1,81 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.util.stream.IntStream;
+
+/**
+ * Post-processing of rendered tile pixels in place, between renderer and encoder.
+ * Either maps red, green and blue channels through a lookup table (gamma correction, contrast-stretching)
+ * or maps the blue channel to alpha of a transparent black overlay (hillshading overlay).
+ * Per-channel tables hold values already shifted to their channel position,
+ * so that each pixel takes three loads and no branches.
+ * Large tiles are processed in stripes in parallel.
+ */
+public class PixelPipeline {
+
+	// Pixels per stripe and minimum number of pixels processed in parallel
+	private final static int STRIPE_PIXELS = 1 << 16;
+	private final static int PARALLEL_PIXELS = 1 << 20;
+
+	private final int[] redTable;
+	private final int[] greenTable;
+	private final int[] blueTable;
+	private final int[] alphaTable;
+
+	private PixelPipeline(int[] redTable, int[] greenTable, int[] blueTable, int[] alphaTable) {
+		this.redTable = redTable;
+		this.greenTable = greenTable;
+		this.blueTable = blueTable;
+		this.alphaTable = alphaTable;
+	}
+
+	/*
+	 * Map each color channel value through lookup table of 256 values, alpha is kept
+	 */
+	public static PixelPipeline colorLookup(int[] lookupTable) {
+		int[] redTable = new int[256];
+		int[] greenTable = new int[256];
+		int[] blueTable = new int[256];
+		for (int i = 0; i < 256; i++) {
+			redTable[i] = lookupTable[i] << 16;
+			greenTable[i] = lookupTable[i] << 8;
+			blueTable[i] = lookupTable[i];
+		}
+		return new PixelPipeline(redTable, greenTable, blueTable, null);
+	}
+
+	/*
+	 * Replace each pixel by black with alpha value looked up by pixel's blue value
+	 */
+	public static PixelPipeline alphaLookup(int[] lookupTable) {
+		int[] alphaTable = new int[256];
+		for (int i = 0; i < 256; i++) alphaTable[i] = lookupTable[i] << 24;
+		return new PixelPipeline(null, null, null, alphaTable);
+	}
+
+	/*
+	 * Whether processed pixels carry alpha values
+	 */
+	public boolean hasAlpha() {
+		return alphaTable != null;
+	}
+
+	public void apply(int[] pixels, int pixelCount) {
+		if (pixelCount < PARALLEL_PIXELS) {
+			apply(pixels, 0, pixelCount);
+			return;
+		}
+		IntStream.range(0, (pixelCount + STRIPE_PIXELS - 1) / STRIPE_PIXELS).parallel()
+				.forEach(stripe -> apply(pixels, stripe * STRIPE_PIXELS, Math.min(pixelCount, (stripe + 1) * STRIPE_PIXELS)));
+	}
+
+	private void apply(int[] pixels, int from, int to) {
+		if (alphaTable != null) {
+			for (int i = from; i < to; i++) pixels[i] = alphaTable[pixels[i] & 0xff];
+		} else {
+			for (int i = from; i < to; i++) {
+				int pixel = pixels[i];
+				pixels[i] = (pixel & 0xff000000) | redTable[(pixel >>> 16) & 0xff] | greenTable[(pixel >>> 8) & 0xff] | blueTable[pixel & 0xff];
+			}
+		}
+	}
+}
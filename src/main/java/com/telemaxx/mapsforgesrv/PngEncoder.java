@@ -0,0 +1,330 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder working directly on int ARGB pixel arrays of rendered tiles.
+ * Tiles with at most 256 colors are written as indexed color images with smallest possible bit depth,
+ * others as truecolor images with or without alpha channel.
+ * Deflater, scanline and output buffers are kept per thread and reused.
+ */
+public class PngEncoder {
+
+	public final static String FILTER_NONE = "none"; //$NON-NLS-1$
+	public final static String FILTER_SUB = "sub"; //$NON-NLS-1$
+	public final static String FILTER_UP = "up"; //$NON-NLS-1$
+	public final static String FILTER_AVERAGE = "average"; //$NON-NLS-1$
+	public final static String FILTER_PAETH = "paeth"; //$NON-NLS-1$
+	public final static String FILTER_ADAPTIVE = "adaptive"; //$NON-NLS-1$
+	// Order equals PNG filter type numbers, adaptive chooses best filter per scanline
+	public final static String[] FILTERS = { FILTER_NONE, FILTER_SUB, FILTER_UP, FILTER_AVERAGE, FILTER_PAETH, FILTER_ADAPTIVE };
+
+	private final static byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	private final static int MAX_PALETTE_SIZE = 256;
+	private final static int ADAPTIVE = 5;
+
+	private final int compressionLevel;
+	private final int filter;
+
+	private final static ThreadLocal<Buffers> threadBuffers = ThreadLocal.withInitial(Buffers::new);
+
+	/*
+	 * Compression level 0-9, filter one of FILTERS applied to truecolor images,
+	 * indexed color images are never filtered
+	 */
+	public PngEncoder(int compressionLevel, String filter) {
+		this.compressionLevel = compressionLevel;
+		this.filter = Arrays.asList(FILTERS).indexOf(filter);
+		if (this.filter < 0) throw new IllegalArgumentException("Unknown PNG filter '" + filter + "'"); //$NON-NLS-1$
+	}
+
+	public byte[] encode(BufferedImage image) {
+		return encode(getPixels(image), image.getWidth(), image.getHeight(), image.getColorModel().hasAlpha());
+	}
+
+	/*
+	 * Pixels 0xaarrggbb of image, pixel array of rendered tiles is used as is
+	 */
+	static int[] getPixels(BufferedImage image) {
+		int type = image.getType();
+		if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) && image.getRaster().getDataBuffer() instanceof DataBufferInt)
+			return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+	}
+
+	/*
+	 * Encode pixels 0xaarrggbb, alpha bits are ignored unless alpha is set
+	 */
+	public byte[] encode(int[] pixels, int width, int height, boolean alpha) {
+		Buffers buffers = threadBuffers.get();
+		buffers.output.reset();
+		buffers.output.write(SIGNATURE, 0, SIGNATURE.length);
+		int paletteSize = createPalette(buffers, pixels, width * height, alpha);
+		if (paletteSize > 0) {
+			int bitDepth = paletteSize <= 2 ? 1 : paletteSize <= 4 ? 2 : paletteSize <= 16 ? 4 : 8;
+			writeHeader(buffers, width, height, bitDepth, 3);
+			writePalette(buffers, paletteSize);
+			writeIndexedData(buffers, width, height, bitDepth);
+		} else {
+			writeHeader(buffers, width, height, 8, alpha ? 6 : 2);
+			writeTruecolorData(buffers, pixels, width, height, alpha);
+		}
+		buffers.startChunk("IEND"); //$NON-NLS-1$
+		buffers.endChunk();
+		return buffers.output.toByteArray();
+	}
+
+	/*
+	 * Collect colors and indices of pixels, return palette size or 0 if more than 256 colors
+	 */
+	private static int createPalette(Buffers buffers, int[] pixels, int pixelCount, boolean alpha) {
+		if (buffers.indices.length < pixelCount) buffers.indices = new byte[pixelCount];
+		int[] hashColors = buffers.hashColors;
+		byte[] hashIndices = buffers.hashIndices;
+		Arrays.fill(buffers.hashUsed, false);
+		int mask = alpha ? 0xffffffff : 0x00ffffff;
+		int size = 0;
+		int lastColor = 0;
+		byte lastIndex = 0;
+		for (int i = 0; i < pixelCount; i++) {
+			int color = pixels[i] & mask;
+			if (i == 0 || color != lastColor) {
+				int slot = (color * 0x9e3779b1) >>> (32 - Buffers.HASH_BITS);
+				while (buffers.hashUsed[slot] && hashColors[slot] != color) slot = (slot + 1) & (Buffers.HASH_SIZE - 1);
+				if (!buffers.hashUsed[slot]) {
+					if (size == MAX_PALETTE_SIZE) return 0;
+					buffers.hashUsed[slot] = true;
+					hashColors[slot] = color;
+					hashIndices[slot] = (byte) size;
+					buffers.palette[size++] = color;
+				}
+				lastColor = color;
+				lastIndex = hashIndices[slot];
+			}
+			buffers.indices[i] = lastIndex;
+		}
+		if (!alpha) for (int i = 0; i < size; i++) buffers.palette[i] |= 0xff000000;
+		return size;
+	}
+
+	private void writeHeader(Buffers buffers, int width, int height, int bitDepth, int colorType) {
+		buffers.startChunk("IHDR"); //$NON-NLS-1$
+		buffers.writeInt(width);
+		buffers.writeInt(height);
+		buffers.output.write(bitDepth);
+		buffers.output.write(colorType);
+		buffers.output.write(0); // deflate
+		buffers.output.write(0); // adaptive filtering
+		buffers.output.write(0); // no interlace
+		buffers.endChunk();
+	}
+
+	private static void writePalette(Buffers buffers, int paletteSize) {
+		buffers.startChunk("PLTE"); //$NON-NLS-1$
+		int transparentSize = 0;
+		for (int i = 0; i < paletteSize; i++) {
+			int color = buffers.palette[i];
+			buffers.output.write(color >>> 16);
+			buffers.output.write(color >>> 8);
+			buffers.output.write(color);
+			if ((color >>> 24) != 0xff) transparentSize = i + 1;
+		}
+		buffers.endChunk();
+		if (transparentSize == 0) return;
+		buffers.startChunk("tRNS"); //$NON-NLS-1$
+		for (int i = 0; i < transparentSize; i++) buffers.output.write(buffers.palette[i] >>> 24);
+		buffers.endChunk();
+	}
+
+	private void writeIndexedData(Buffers buffers, int width, int height, int bitDepth) {
+		int rowLength = (width * bitDepth + 7) / 8;
+		byte[] row = buffers.row(0, rowLength + 1);
+		int pixelsPerByte = 8 / bitDepth;
+		Deflater deflater = buffers.startData(compressionLevel, Deflater.DEFAULT_STRATEGY);
+		byte[] indices = buffers.indices;
+		for (int y = 0, offset = 0; y < height; y++, offset += width) {
+			row[0] = 0; // filter none
+			if (bitDepth == 8) {
+				System.arraycopy(indices, offset, row, 1, width);
+			} else {
+				Arrays.fill(row, 1, rowLength + 1, (byte) 0);
+				for (int x = 0; x < width; x++) {
+					int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+					row[1 + x / pixelsPerByte] |= indices[offset + x] << shift;
+				}
+			}
+			buffers.deflate(deflater, row, rowLength + 1);
+		}
+		buffers.endData(deflater);
+	}
+
+	private void writeTruecolorData(Buffers buffers, int[] pixels, int width, int height, boolean alpha) {
+		int bpp = alpha ? 4 : 3;
+		int rowLength = width * bpp;
+		byte[] previous = buffers.row(0, rowLength);
+		byte[] current = buffers.row(1, rowLength);
+		Arrays.fill(previous, 0, rowLength, (byte) 0);
+		Deflater deflater = buffers.startData(compressionLevel, filter == 0 ? Deflater.DEFAULT_STRATEGY : Deflater.FILTERED);
+		for (int y = 0, offset = 0; y < height; y++, offset += width) {
+			for (int x = 0, i = 0; x < width; x++) {
+				int pixel = pixels[offset + x];
+				current[i++] = (byte) (pixel >>> 16);
+				current[i++] = (byte) (pixel >>> 8);
+				current[i++] = (byte) pixel;
+				if (alpha) current[i++] = (byte) (pixel >>> 24);
+			}
+			byte[] filtered;
+			if (filter == ADAPTIVE) {
+				filtered = null;
+				long bestSum = Long.MAX_VALUE;
+				for (int type = 0; type < ADAPTIVE; type++) {
+					byte[] candidate = buffers.row(2 + type, rowLength + 1);
+					long sum = filterRow(type, current, previous, candidate, rowLength, bpp);
+					if (sum < bestSum) {
+						bestSum = sum;
+						filtered = candidate;
+					}
+				}
+			} else {
+				filtered = buffers.row(2, rowLength + 1);
+				filterRow(filter, current, previous, filtered, rowLength, bpp);
+			}
+			buffers.deflate(deflater, filtered, rowLength + 1);
+			byte[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		buffers.endData(deflater);
+	}
+
+	/*
+	 * Filter row into output prefixed with filter type, return sum of absolute filtered values
+	 */
+	private static long filterRow(int type, byte[] current, byte[] previous, byte[] output, int length, int bpp) {
+		output[0] = (byte) type;
+		long sum = 0;
+		for (int i = 0; i < length; i++) {
+			int raw = current[i] & 0xff;
+			int left = i >= bpp ? current[i - bpp] & 0xff : 0;
+			int up = previous[i] & 0xff;
+			int value;
+			switch (type) {
+			case 1:
+				value = raw - left;
+				break;
+			case 2:
+				value = raw - up;
+				break;
+			case 3:
+				value = raw - ((left + up) >>> 1);
+				break;
+			case 4:
+				int upLeft = i >= bpp ? previous[i - bpp] & 0xff : 0;
+				int p = left + up - upLeft;
+				int pa = Math.abs(p - left);
+				int pb = Math.abs(p - up);
+				int pc = Math.abs(p - upLeft);
+				value = raw - (pa <= pb && pa <= pc ? left : pb <= pc ? up : upLeft);
+				break;
+			default:
+				value = raw;
+			}
+			output[i + 1] = (byte) value;
+			sum += Math.abs((byte) value);
+		}
+		return sum;
+	}
+
+	/*
+	 * Per thread reusable state
+	 */
+	private static class Buffers {
+		final static int HASH_BITS = 10;
+		final static int HASH_SIZE = 1 << HASH_BITS;
+
+		final int[] hashColors = new int[HASH_SIZE];
+		final byte[] hashIndices = new byte[HASH_SIZE];
+		final boolean[] hashUsed = new boolean[HASH_SIZE];
+		final int[] palette = new int[MAX_PALETTE_SIZE];
+		byte[] indices = new byte[0];
+		final byte[][] rows = new byte[2 + ADAPTIVE][];
+		final byte[] deflateBuffer = new byte[16384];
+		final OutputBuffer output = new OutputBuffer();
+		final CRC32 crc = new CRC32();
+		final Deflater deflater = new Deflater();
+		int chunkStart;
+
+		byte[] row(int number, int length) {
+			if (rows[number] == null || rows[number].length < length) rows[number] = new byte[length];
+			return rows[number];
+		}
+
+		void writeInt(int value) {
+			output.write(value >>> 24);
+			output.write(value >>> 16);
+			output.write(value >>> 8);
+			output.write(value);
+		}
+
+		void startChunk(String type) {
+			chunkStart = output.size();
+			writeInt(0); // length, set by endChunk
+			for (int i = 0; i < 4; i++) output.write(type.charAt(i));
+		}
+
+		void endChunk() {
+			int length = output.size() - chunkStart - 8;
+			output.setInt(chunkStart, length);
+			crc.reset();
+			crc.update(output.buffer(), chunkStart + 4, length + 4);
+			writeInt((int) crc.getValue());
+		}
+
+		Deflater startData(int level, int strategy) {
+			deflater.reset();
+			deflater.setLevel(level);
+			deflater.setStrategy(strategy);
+			startChunk("IDAT"); //$NON-NLS-1$
+			return deflater;
+		}
+
+		void deflate(Deflater deflater, byte[] data, int length) {
+			deflater.setInput(data, 0, length);
+			while (!deflater.needsInput()) {
+				int count = deflater.deflate(deflateBuffer);
+				output.write(deflateBuffer, 0, count);
+			}
+		}
+
+		void endData(Deflater deflater) {
+			deflater.finish();
+			while (!deflater.finished()) {
+				int count = deflater.deflate(deflateBuffer);
+				output.write(deflateBuffer, 0, count);
+			}
+			endChunk();
+		}
+	}
+
+	// Growable byte buffer giving access to its content without copying
+	private static class OutputBuffer extends java.io.ByteArrayOutputStream {
+		OutputBuffer() {
+			super(65536);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+
+		void setInt(int position, int value) {
+			buf[position] = (byte) (value >>> 24);
+			buf[position + 1] = (byte) (value >>> 16);
+			buf[position + 2] = (byte) (value >>> 8);
+			buf[position + 3] = (byte) value;
+		}
+	}
+}
@@ -27,6 +27,10 @@ public abstract class PropertiesParser {
 	public final static String 		VERSION = "0.23.0.3"; // starting with eg 0.13, the mapsforge version //$NON-NLS-1$
 
 	public final static String 		TILE_EXTENSION = "png"; //$NON-NLS-1$
+	// Tile formats besides those supported by ImageIO
+	public final static String 		TILE_FORMAT_PNG8 = "png8"; //$NON-NLS-1$
+	public final static String 		TILE_FORMAT_WEBP = "webp"; //$NON-NLS-1$
+	public final static String 		MBTILES_EXTENSION = ".mbtiles"; //$NON-NLS-1$
 	// false: use default value true: exit(1)
 	protected static final String 	FILE = "file"; //$NON-NLS-1$
 	protected static final String 	FOLDER = "folder"; //$NON-NLS-1$
@@ -51,6 +55,20 @@ public abstract class PropertiesParser {
 
 	// MapsforgeConfig.cacheControl
 	protected final static long 	DEFAULT_CACHECONTROL = 0;
+	// MapsforgeConfig.tileCacheSize [MB]
+	protected final static long 	DEFAULT_TILECACHE_SIZE = 1024;
+	// MapsforgeConfig.tileCacheMemory [MB]
+	protected final static long 	DEFAULT_TILECACHE_MEMORY = 0;
+	// MapsforgeConfig.tileCacheRevalidate [tiles/s]
+	protected final static int	 	DEFAULT_TILECACHE_REVALIDATE = 0;
+	// MapsforgeConfig.mapDataCacheMemory [MB]
+	protected final static long 	DEFAULT_MAPDATACACHE_MEMORY = 0;
+	// MapsforgeConfig.mapFileHandles
+	protected final static int	 	DEFAULT_MAPFILE_HANDLES = 128;
+	// MapsforgeConfig.renderThreads
+	protected final static int	 	DEFAULT_RENDER_THREADS = Runtime.getRuntime().availableProcessors();
+	// MapsforgeConfig.renderQueue
+	protected final static int	 	DEFAULT_RENDER_QUEUE = 64;
 
 	// MapsforgeTaskConfig.gammaValue
 	protected final static double 	DEFAULT_GAMMA = 1.;
@@ -66,6 +84,22 @@ public abstract class PropertiesParser {
 	protected final static float	DEFAULT_SYMBOLSCALE = 1.0f;
 	// MapsforgeTaskConfig.lineScale
 	protected final static float	DEFAULT_LINESCALE = 1.0f;
+	// MapsforgeTaskConfig.metaTile
+	protected final static int		DEFAULT_METATILE = 1;
+	// MapsforgeTaskConfig.pngCompression
+	protected final static int		DEFAULT_PNG_COMPRESSION = 6;
+	// MapsforgeTaskConfig.pngFilter
+	protected final static String	DEFAULT_PNG_FILTER = PngEncoder.FILTER_ADAPTIVE;
+	// MapsforgeTaskConfig.quantizeColors
+	protected final static int		DEFAULT_QUANTIZE_COLORS = 256;
+	// MapsforgeTaskConfig.webpLossless
+	protected final static boolean	DEFAULT_WEBP_LOSSLESS = true;
+	// MapsforgeTaskConfig.mapFileAccess
+	public final static String		MAPFILE_ACCESS_CHANNEL = "channel"; //$NON-NLS-1$
+	public final static String		MAPFILE_ACCESS_MMAP = "mmap"; //$NON-NLS-1$
+	public final static String		MAPFILE_ACCESS_LAZY = "lazy"; //$NON-NLS-1$
+	protected final static String[]	AUTHORIZED_MAPFILE_ACCESS = { MAPFILE_ACCESS_CHANNEL, MAPFILE_ACCESS_MMAP, MAPFILE_ACCESS_LAZY };
+	protected final static String	DEFAULT_MAPFILE_ACCESS = MAPFILE_ACCESS_CHANNEL;
 	// MapsforgeTaskConfig.hillShadingArguments
 	public final static double[] 	DEFAULT_HILLSHADING_SIMPLE = { 0.1, 0.666 };
 	public final static	double 		DEFAULT_HILLSHADING_DIFFUSELIGHT = 50;
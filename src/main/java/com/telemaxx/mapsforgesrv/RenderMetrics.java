@@ -0,0 +1,129 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms of a task's tile requests, by stage, zoom level and engine.
+ * Histograms are preallocated, so that recording a duration takes no locks and no allocations.
+ * Written in Prometheus text exposition format, histograms never recorded are left out.
+ */
+public class RenderMetrics {
+
+	public final static String[] STAGES = { "parse", "supportsTile", "render", "postprocess", "encode", "write" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+	public final static int STAGE_PARSE = 0;
+	public final static int STAGE_SUPPORTS_TILE = 1;
+	public final static int STAGE_RENDER = 2;
+	public final static int STAGE_POSTPROCESS = 3;
+	public final static int STAGE_ENCODE = 4;
+	public final static int STAGE_WRITE = 5;
+
+	public final static String[] ENGINES = { "std", "hs" }; //$NON-NLS-1$ //$NON-NLS-2$
+	private final static int ZOOM_LEVELS = 32;
+
+	// Upper bounds of buckets in seconds, last bucket is +Inf
+	private final static double[] BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+	private final static long[] BUCKET_NANOS = new long[BUCKETS.length];
+	private final static String[] BUCKET_LABELS = new String[BUCKETS.length];
+	static {
+		for (int i = 0; i < BUCKETS.length; i++) {
+			BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1e9);
+			BUCKET_LABELS[i] = BigDecimal.valueOf(BUCKETS[i]).stripTrailingZeros().toPlainString();
+		}
+	}
+
+	private final Histogram[][][] histograms = new Histogram[STAGES.length][ENGINES.length][ZOOM_LEVELS];
+	// Completed renders of tiles and cancelled renders
+	private final LongAdder renders = new LongAdder();
+	private final LongAdder renderNanos = new LongAdder();
+	private final LongAdder cancelledWaiting = new LongAdder();
+	private final LongAdder cancelledRendering = new LongAdder();
+	private final LongAdder savedNanos = new LongAdder();
+
+	public RenderMetrics() {
+		for (Histogram[][] stageHistograms : histograms)
+			for (Histogram[] engineHistograms : stageHistograms)
+				for (int zoom = 0; zoom < ZOOM_LEVELS; zoom++) engineHistograms[zoom] = new Histogram();
+	}
+
+	public void record(int stage, int zoom, String engine, long nanos) {
+		histograms[stage][engine.equals(ENGINES[1]) ? 1 : 0][Math.max(0, Math.min(zoom, ZOOM_LEVELS - 1))].record(nanos);
+	}
+
+	public void recordRender(long nanos) {
+		renders.increment();
+		renderNanos.add(nanos);
+	}
+
+	/*
+	 * Count cancelled render, saved time is estimated by mean time of completed renders
+	 * minus time already spent by render if started
+	 */
+	public void recordCancelled(boolean started, long spentNanos) {
+		(started ? cancelledRendering : cancelledWaiting).increment();
+		long count = renders.sum();
+		if (count == 0) return;
+		savedNanos.add(Math.max(0, renderNanos.sum() / count - (started ? spentNanos : 0)));
+	}
+
+	public long getCancelledWaiting() {
+		return cancelledWaiting.sum();
+	}
+
+	public long getCancelledRendering() {
+		return cancelledRendering.sum();
+	}
+
+	public double getSavedSeconds() {
+		return savedNanos.sum() / 1e9;
+	}
+
+	/*
+	 * Append sample lines of metric family "name" labeled by task, histogram header is written by caller
+	 */
+	public void write(StringBuilder builder, String name, String task) {
+		for (int stage = 0; stage < STAGES.length; stage++) {
+			for (int engine = 0; engine < ENGINES.length; engine++) {
+				for (int zoom = 0; zoom < ZOOM_LEVELS; zoom++) {
+					Histogram histogram = histograms[stage][engine][zoom];
+					long count = histogram.count.sum();
+					if (count == 0) continue;
+					String labels = "task=\"" + task + "\",stage=\"" + STAGES[stage] + "\",zoom=\"" + zoom + "\",engine=\"" + ENGINES[engine] + "\""; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+					long cumulative = 0;
+					for (int bucket = 0; bucket < BUCKETS.length; bucket++) {
+						cumulative += histogram.buckets[bucket].sum();
+						builder.append(name).append("_bucket{").append(labels).append(",le=\"").append(BUCKET_LABELS[bucket]).append("\"} ") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+								.append(cumulative).append('\n');
+					}
+					builder.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n'); //$NON-NLS-1$ //$NON-NLS-2$
+					builder.append(name).append("_sum{").append(labels).append("} ") //$NON-NLS-1$ //$NON-NLS-2$
+							.append(String.format(Locale.ROOT, "%.6f", histogram.sumNanos.sum() / 1e9)).append('\n'); //$NON-NLS-1$
+					builder.append(name).append("_count{").append(labels).append("} ").append(count).append('\n'); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+			}
+		}
+	}
+
+	private static class Histogram {
+		// Non-cumulative counts per bucket, +Inf bucket is derived from count
+		private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sumNanos = new LongAdder();
+
+		private Histogram() {
+			for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+		}
+
+		private void record(long nanos) {
+			for (int i = 0; i < BUCKET_NANOS.length; i++) {
+				if (nanos <= BUCKET_NANOS[i]) {
+					buckets[i].increment();
+					break;
+				}
+			}
+			count.increment();
+			sumNanos.add(nanos);
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Admission control of tile renders shared by all tasks.
+ * A fixed number of render threads takes renders from a bounded wait queue,
+ * renders exceeding the queue are rejected immediately instead of piling up.
+ * Interactive renders are taken before background renders (prefetch),
+ * but while both wait, at least every INTERACTIVE_BURST + 1st render is a background render.
+ * Within each priority, each task has its own queue and tasks with waiting renders are served round robin.
+ * When the queue is full, an interactive render pushes out the newest background render.
+ * Otherwise a render of a task with fewer waiting renders of same priority pushes out
+ * the newest render of the task with most waiting renders of same priority,
+ * so that a burst of requests to one task doesn't starve other tasks.
+ */
+public class RenderScheduler {
+
+	public final static int PRIORITY_INTERACTIVE = 0;
+	public final static int PRIORITY_BACKGROUND = 1;
+	public final static String[] PRIORITIES = { "interactive", "background" }; //$NON-NLS-1$ //$NON-NLS-2$
+
+	// Interactive renders taken in a row before a waiting background render
+	private final static int INTERACTIVE_BURST = 8;
+
+	private final int threads;
+	private final int maxQueued;
+	private final Lane[] lanes = { new Lane(), new Lane() };
+	private int interactiveStreak = 0;
+	private int running = 0;
+	private long rejected = 0;
+
+	public RenderScheduler(int threads, int maxQueued) {
+		this.threads = threads;
+		this.maxQueued = maxQueued;
+		for (int i = 1; i <= threads; i++) {
+			Thread thread = new Thread(null, this::work, "Renderer-" + i); //$NON-NLS-1$
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/*
+	 * Queue render of task with priority, render's result completes given future
+	 * Future fails with RejectedExecutionException if render can neither start nor wait
+	 */
+	public <T> void submit(String task, int priority, Callable<T> callable, CompletableFuture<T> future) {
+		Render<T> render = new Render<T>(task, callable, future);
+		Render<?> pushedOut = null;
+		synchronized (this) {
+			Lane lane = lanes[priority];
+			// Renders beyond idle threads have to wait
+			if (running + getQueued() >= threads + maxQueued) {
+				if (priority == PRIORITY_INTERACTIVE) pushedOut = lanes[PRIORITY_BACKGROUND].pollLast(null);
+				if (pushedOut == null) pushedOut = lane.pollLast(task);
+				rejected++;
+				if (pushedOut == null) {
+					future.completeExceptionally(new RejectedExecutionException("Render queue full")); //$NON-NLS-1$
+					return;
+				}
+			}
+			lane.add(render);
+			notify();
+		}
+		if (pushedOut != null) pushedOut.future.completeExceptionally(new RejectedExecutionException("Render pushed out of queue")); //$NON-NLS-1$
+	}
+
+	/*
+	 * Move waiting background render completing future to interactive renders
+	 */
+	public synchronized void promote(CompletableFuture<?> future) {
+		Render<?> render = lanes[PRIORITY_BACKGROUND].remove(future);
+		if (render != null) lanes[PRIORITY_INTERACTIVE].add(render);
+	}
+
+	private void work() {
+		while (true) {
+			Render<?> render;
+			synchronized (this) {
+				while (getQueued() == 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (lanes[PRIORITY_INTERACTIVE].queued > 0
+						&& (lanes[PRIORITY_BACKGROUND].queued == 0 || interactiveStreak < INTERACTIVE_BURST)) {
+					render = lanes[PRIORITY_INTERACTIVE].poll();
+					interactiveStreak++;
+				} else {
+					render = lanes[PRIORITY_BACKGROUND].poll();
+					interactiveStreak = 0;
+				}
+				running++;
+			}
+			try {
+				render.run();
+			} finally {
+				synchronized (this) {
+					running--;
+				}
+			}
+		}
+	}
+
+	public synchronized int getQueued() {
+		return lanes[PRIORITY_INTERACTIVE].queued + lanes[PRIORITY_BACKGROUND].queued;
+	}
+
+	public synchronized int getQueued(int priority) {
+		return lanes[priority].queued;
+	}
+
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/*
+	 * Waiting renders of one priority, queued per task, guarded by scheduler
+	 */
+	private static class Lane {
+		// task name -> waiting renders of task
+		private final Map<String, ArrayDeque<Render<?>>> queues = new HashMap<String, ArrayDeque<Render<?>>>();
+		// Tasks having waiting renders, in order of service
+		private final ArrayDeque<String> readyTasks = new ArrayDeque<String>();
+		private int queued = 0;
+
+		private void add(Render<?> render) {
+			ArrayDeque<Render<?>> queue = queues.computeIfAbsent(render.task, key -> new ArrayDeque<Render<?>>());
+			if (queue.isEmpty()) readyTasks.add(render.task);
+			queue.add(render);
+			queued++;
+		}
+
+		private Render<?> poll() {
+			String task = readyTasks.poll();
+			ArrayDeque<Render<?>> queue = queues.get(task);
+			Render<?> render = queue.poll();
+			if (!queue.isEmpty()) readyTasks.add(task);
+			queued--;
+			return render;
+		}
+
+		/*
+		 * Remove newest render of task with most waiting renders
+		 * If task is set, only if that task has at least two renders more waiting than task
+		 */
+		private Render<?> pollLast(String task) {
+			String largestTask = null;
+			for (String readyTask : readyTasks)
+				if (largestTask == null || queues.get(readyTask).size() > queues.get(largestTask).size()) largestTask = readyTask;
+			if (largestTask == null) return null;
+			ArrayDeque<Render<?>> largestQueue = queues.get(largestTask);
+			if (task != null && largestQueue.size() <= queues.getOrDefault(task, new ArrayDeque<Render<?>>()).size() + 1) return null;
+			Render<?> render = largestQueue.pollLast();
+			if (largestQueue.isEmpty()) readyTasks.remove(largestTask);
+			queued--;
+			return render;
+		}
+
+		private Render<?> remove(CompletableFuture<?> future) {
+			for (ArrayDeque<Render<?>> queue : queues.values()) {
+				Iterator<Render<?>> iterator = queue.iterator();
+				while (iterator.hasNext()) {
+					Render<?> render = iterator.next();
+					if (render.future != future) continue;
+					iterator.remove();
+					if (queue.isEmpty()) readyTasks.remove(render.task);
+					queued--;
+					return render;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static class Render<T> {
+		private final String task;
+		private final Callable<T> callable;
+		private final CompletableFuture<T> future;
+
+		private Render(String task, Callable<T> callable, CompletableFuture<T> future) {
+			this.task = task;
+			this.callable = callable;
+			this.future = future;
+		}
+
+		private void run() {
+			try {
+				future.complete(callable.call());
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		}
+	}
+}
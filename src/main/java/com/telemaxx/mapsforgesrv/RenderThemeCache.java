@@ -0,0 +1,73 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-wide store of compiled render themes shared by all tasks.
+ * A compiled render theme is identified by a key built from everything affecting compilation,
+ * i.e. render theme content, style, overlays and display model scales.
+ * Tasks acquire a compiled render theme and release it when no longer used,
+ * it is dropped when released by its last user.
+ */
+public class RenderThemeCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(RenderThemeCache.class);
+
+	private final Map<String, CompiledRenderTheme> compiledRenderThemes = new HashMap<String, CompiledRenderTheme>();
+	private long hits = 0;
+	private long misses = 0;
+
+	/*
+	 * Return compiled render theme for key, compile it if not yet available
+	 */
+	public synchronized CompiledRenderTheme acquire(String key, Supplier<CompiledRenderTheme> compiler) {
+		CompiledRenderTheme compiledRenderTheme = compiledRenderThemes.get(key);
+		if (compiledRenderTheme != null) {
+			hits++;
+			logger.debug("Reusing compiled render theme " + key); //$NON-NLS-1$
+		} else {
+			misses++;
+			compiledRenderTheme = compiler.get();
+			compiledRenderTheme.key = key;
+			compiledRenderThemes.put(key, compiledRenderTheme);
+		}
+		compiledRenderTheme.users++;
+		return compiledRenderTheme;
+	}
+
+	public synchronized void release(String key) {
+		CompiledRenderTheme compiledRenderTheme = compiledRenderThemes.get(key);
+		if (compiledRenderTheme == null) return;
+		if (--compiledRenderTheme.users <= 0) compiledRenderThemes.remove(key);
+	}
+
+	public synchronized int getCount() {
+		return compiledRenderThemes.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public static class CompiledRenderTheme {
+		final DisplayModel displayModel;
+		final RenderThemeFuture renderThemeFuture;
+		String key;
+		private int users = 0;
+		CompiledRenderTheme(DisplayModel displayModel, RenderThemeFuture renderThemeFuture) {
+			this.displayModel = displayModel;
+			this.renderThemeFuture = renderThemeFuture;
+		}
+	}
+}
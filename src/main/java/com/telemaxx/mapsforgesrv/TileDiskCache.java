@@ -0,0 +1,396 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Size-bounded store of encoded tiles below a cache folder.
+ * Files are addressed by slash separated paths relative to the cache folder
+ * and evicted in least-recently-used order when the size limit is exceeded.
+ */
+public class TileDiskCache {
+
+	private final static Logger logger = LoggerFactory.getLogger(TileDiskCache.class);
+
+	private final static String TMP_SUFFIX = ".tmp"; //$NON-NLS-1$
+	private final static String DELETED_SUFFIX = ".deleted"; //$NON-NLS-1$
+
+	private final Path folder;
+	private final long maxBytes;
+	private long currentBytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	// relative path -> file size, iteration order = least recently used first
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+	private final CountDownLatch indexed = new CountDownLatch(1);
+	// Tiles and folders (path ending with "/") removed while indexing, not to be indexed, null once indexed
+	private Set<String> removedWhileIndexing = new HashSet<String>();
+
+	public TileDiskCache(Path folder, long maxBytes) {
+		this.folder = folder;
+		this.maxBytes = maxBytes;
+		Thread indexThread = new Thread(null, () -> {
+			try {
+				indexFolder();
+			} finally {
+				indexed.countDown();
+			}
+		}, "TileDiskCache-index"); //$NON-NLS-1$
+		indexThread.setDaemon(true);
+		indexThread.start();
+	}
+
+	public byte[] get(String path) {
+		byte[] data = read(path);
+		synchronized (entries) {
+			if (data != null) {
+				hits++;
+			} else {
+				misses++;
+			}
+		}
+		return data;
+	}
+
+	private byte[] read(String path) {
+		synchronized (entries) {
+			if (entries.get(path) == null) return null;
+		}
+		try {
+			return Files.readAllBytes(folder.resolve(path));
+		} catch (NoSuchFileException e) {
+			removeEntry(path);
+		} catch (IOException e) {
+			logger.warn("Can't read cached tile '" + path + "': " + e.getMessage()); //$NON-NLS-1$
+		}
+		return null;
+	}
+
+	public boolean contains(String path) {
+		synchronized (entries) {
+			return entries.containsKey(path);
+		}
+	}
+
+	/*
+	 * Whether tiles were cached below relative folder path
+	 */
+	public boolean containsFolder(String path) {
+		return Files.isDirectory(folder.resolve(path));
+	}
+
+	public void put(String path, byte[] data) {
+		Path file = folder.resolve(path);
+		Path tmpFile = file.resolveSibling(file.getFileName() + "." + Thread.currentThread().getId() + TMP_SUFFIX); //$NON-NLS-1$
+		try {
+			Files.createDirectories(file.getParent());
+			Files.write(tmpFile, data);
+			try {
+				Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			logger.warn("Can't write cached tile '" + path + "': " + e.getMessage()); //$NON-NLS-1$
+			try {
+				Files.deleteIfExists(tmpFile);
+			} catch (IOException e1) {}
+			return;
+		}
+		addEntry(path, data.length);
+	}
+
+	/*
+	 * Remove all tiles below relative folder path, e.g. "<task>/<generation>"
+	 */
+	public void removeFolder(String path) {
+		String prefix = path + "/"; //$NON-NLS-1$
+		synchronized (entries) {
+			if (removedWhileIndexing != null) removedWhileIndexing.add(prefix);
+			Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, Long> entry = iterator.next();
+				if (entry.getKey().startsWith(prefix)) {
+					currentBytes -= entry.getValue();
+					iterator.remove();
+				}
+			}
+		}
+		deleteFolder(folder.resolve(path));
+	}
+
+	/*
+	 * Remove single tile
+	 */
+	public void remove(String path) {
+		removeEntry(path);
+		try {
+			Files.deleteIfExists(folder.resolve(path));
+		} catch (IOException e) {
+			logger.warn("Can't remove cached tile '" + path + "': " + e.getMessage()); //$NON-NLS-1$
+		}
+	}
+
+	/*
+	 * Remove all subfolders of relative folder path except the ones to keep
+	 */
+	public void removeSubFolders(String path, String... keep) {
+		List<String> keepList = Arrays.asList(keep);
+		for (String subFolder : listSubFolders(path))
+			if (!keepList.contains(subFolder)) removeFolder(path + "/" + subFolder); //$NON-NLS-1$
+	}
+
+	/*
+	 * Most recently modified subfolder of relative folder path other than the one to skip, null if none
+	 */
+	public String getLatestSubFolder(String path, String skip) {
+		String latest = null;
+		long latestModified = Long.MIN_VALUE;
+		for (String subFolder : listSubFolders(path)) {
+			if (subFolder.equals(skip)) continue;
+			long modified = folder.resolve(path).resolve(subFolder).toFile().lastModified();
+			if (modified > latestModified) {
+				latest = subFolder;
+				latestModified = modified;
+			}
+		}
+		return latest;
+	}
+
+	private List<String> listSubFolders(String path) {
+		Path parent = folder.resolve(path);
+		List<String> subFolders = new ArrayList<String>();
+		if (!Files.isDirectory(parent)) return subFolders;
+		try (Stream<Path> stream = Files.list(parent)) {
+			stream.filter(Files::isDirectory).map(p -> p.getFileName().toString())
+				.filter(name -> !name.endsWith(DELETED_SUFFIX)).forEach(subFolders::add);
+		} catch (IOException e) {
+			logger.warn("Can't list cache folder '" + parent + "': " + e.getMessage()); //$NON-NLS-1$
+		}
+		return subFolders;
+	}
+
+	/*
+	 * Wait until tiles existing from previous runs are indexed
+	 */
+	public void awaitIndexed() throws InterruptedException {
+		indexed.await();
+	}
+
+	public long getSize() {
+		synchronized (entries) {
+			return currentBytes;
+		}
+	}
+
+	public int getCount() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		synchronized (entries) {
+			return hits;
+		}
+	}
+
+	public long getMisses() {
+		synchronized (entries) {
+			return misses;
+		}
+	}
+
+	private void addEntry(String path, long size) {
+		synchronized (entries) {
+			Long oldSize = entries.put(path, size);
+			if (oldSize != null) currentBytes -= oldSize;
+			currentBytes += size;
+		}
+		evict();
+	}
+
+	private void evict() {
+		List<String> evicted = new ArrayList<String>();
+		synchronized (entries) {
+			Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+			while (currentBytes > maxBytes && iterator.hasNext()) {
+				Map.Entry<String, Long> entry = iterator.next();
+				currentBytes -= entry.getValue();
+				evicted.add(entry.getKey());
+				iterator.remove();
+			}
+			if (removedWhileIndexing != null) removedWhileIndexing.addAll(evicted);
+		}
+		for (String evictedPath : evicted) {
+			try {
+				Files.deleteIfExists(folder.resolve(evictedPath));
+			} catch (IOException e) {
+				logger.warn("Can't evict cached tile '" + evictedPath + "': " + e.getMessage()); //$NON-NLS-1$
+			}
+		}
+	}
+
+	private void removeEntry(String path) {
+		synchronized (entries) {
+			if (removedWhileIndexing != null) removedWhileIndexing.add(path);
+			Long size = entries.remove(path);
+			if (size != null) currentBytes -= size;
+		}
+	}
+
+	/*
+	 * Rename folder first, so that new tiles may be written immediately,
+	 * then delete renamed folder in background
+	 */
+	private void deleteFolder(Path path) {
+		if (!Files.isDirectory(path)) return;
+		Path deleted = path.resolveSibling(path.getFileName() + "." + System.nanoTime() + DELETED_SUFFIX); //$NON-NLS-1$
+		try {
+			Files.move(path, deleted, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			deleted = path;
+		}
+		final Path deletePath = deleted;
+		Thread deleteThread = new Thread(null, () -> deleteTree(deletePath), "TileDiskCache-delete"); //$NON-NLS-1$
+		deleteThread.setDaemon(true);
+		deleteThread.start();
+	}
+
+	private static void deleteTree(Path path) {
+		try {
+			Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+					Files.deleteIfExists(file);
+					return FileVisitResult.CONTINUE;
+				}
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+					Files.deleteIfExists(dir);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			logger.warn("Can't delete cache folder '" + path + "': " + e.getMessage()); //$NON-NLS-1$
+		}
+	}
+
+	/*
+	 * Index tiles already existing in cache folder from previous runs,
+	 * oldest modified first, and remove leftovers of interrupted writes and deletes
+	 */
+	private void indexFolder() {
+		long start = System.currentTimeMillis();
+		List<IndexedFile> files = new ArrayList<IndexedFile>();
+		List<Path> leftovers = new ArrayList<Path>();
+		try {
+			Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+					if (dir.getFileName().toString().endsWith(DELETED_SUFFIX)) {
+						leftovers.add(dir);
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+					return FileVisitResult.CONTINUE;
+				}
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					if (file.getFileName().toString().endsWith(TMP_SUFFIX)) {
+						if (attributes.lastModifiedTime().toMillis() < start) leftovers.add(file);
+					} else if (attributes.isRegularFile()) {
+						String path = folder.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/"); //$NON-NLS-1$
+						files.add(new IndexedFile(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+					}
+					return FileVisitResult.CONTINUE;
+				}
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			logger.error("Can't index tile cache folder '" + folder + "': " + e.getMessage()); //$NON-NLS-1$
+			synchronized (entries) {
+				removedWhileIndexing = null;
+			}
+			return;
+		}
+		for (Path leftover : leftovers) {
+			if (Files.isDirectory(leftover)) {
+				deleteTree(leftover);
+			} else {
+				try {
+					Files.deleteIfExists(leftover);
+				} catch (IOException e) {}
+			}
+		}
+		files.sort(Comparator.comparingLong(file -> file.lastModified));
+		synchronized (entries) {
+			// Tiles written meanwhile are more recent than already existing ones
+			LinkedHashMap<String, Long> written = new LinkedHashMap<String, Long>(entries);
+			entries.clear();
+			currentBytes = 0;
+			for (IndexedFile file : files) {
+				if (written.containsKey(file.path) || isRemovedWhileIndexing(file.path)) continue;
+				entries.put(file.path, file.size);
+				currentBytes += file.size;
+			}
+			for (Map.Entry<String, Long> entry : written.entrySet()) {
+				entries.put(entry.getKey(), entry.getValue());
+				currentBytes += entry.getValue();
+			}
+			removedWhileIndexing = null;
+		}
+		evict();
+		logger.info("Tile cache folder '" + folder + "' indexed: " + getCount() + " tiles, " //$NON-NLS-1$
+				+ (getSize() >> 20) + " MB in " + (System.currentTimeMillis() - start) + " ms"); //$NON-NLS-1$
+	}
+
+	/*
+	 * Whether tile found by indexing was removed meanwhile, by itself or along with a folder
+	 */
+	private boolean isRemovedWhileIndexing(String path) {
+		if (removedWhileIndexing.isEmpty()) return false;
+		if (removedWhileIndexing.contains(path)) return true;
+		for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1))
+			if (removedWhileIndexing.contains(path.substring(0, i + 1))) return true;
+		return false;
+	}
+
+	private static class IndexedFile {
+		final String path;
+		final long size;
+		final long lastModified;
+		IndexedFile(String path, long size, long lastModified) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+}
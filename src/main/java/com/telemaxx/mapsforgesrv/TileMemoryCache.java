@@ -0,0 +1,104 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Size-bounded in-heap store of encoded tiles.
+ * Entries are weighted by their byte size and evicted
+ * in least-recently-used order when the memory budget is exceeded.
+ */
+public class TileMemoryCache {
+
+	// Approximate heap overhead of map entry, key string and array header
+	private final static int ENTRY_OVERHEAD = 96;
+
+	private final long maxBytes;
+	private long currentBytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	// relative path -> encoded tile, iteration order = least recently used first
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(1024, 0.75f, true);
+
+	public TileMemoryCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized byte[] get(String path) {
+		byte[] data = entries.get(path);
+		if (data != null) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return data;
+	}
+
+	public synchronized boolean contains(String path) {
+		return entries.containsKey(path);
+	}
+
+	public synchronized boolean contains(Predicate<String> filter) {
+		for (String path : entries.keySet())
+			if (filter.test(path)) return true;
+		return false;
+	}
+
+	public synchronized void put(String path, byte[] data) {
+		long weight = weight(path, data);
+		if (weight > maxBytes) return;
+		byte[] oldData = entries.put(path, data);
+		if (oldData != null) currentBytes -= weight(path, oldData);
+		currentBytes += weight;
+		Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+		while (currentBytes > maxBytes && iterator.hasNext()) {
+			Map.Entry<String, byte[]> entry = iterator.next();
+			currentBytes -= weight(entry.getKey(), entry.getValue());
+			evictions++;
+			iterator.remove();
+		}
+	}
+
+	public synchronized void remove(String path) {
+		byte[] data = entries.remove(path);
+		if (data != null) currentBytes -= weight(path, data);
+	}
+
+	public synchronized void remove(Predicate<String> filter) {
+		Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, byte[]> entry = iterator.next();
+			if (filter.test(entry.getKey())) {
+				currentBytes -= weight(entry.getKey(), entry.getValue());
+				iterator.remove();
+			}
+		}
+	}
+
+	public synchronized long getSize() {
+		return currentBytes;
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	private static long weight(String path, byte[] data) {
+		return ENTRY_OVERHEAD + 2L * path.length() + data.length;
+	}
+}
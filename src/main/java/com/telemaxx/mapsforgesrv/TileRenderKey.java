@@ -0,0 +1,105 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.util.Objects;
+
+/**
+ * Identifies an encoded tile by all request properties affecting its bytes
+ */
+public class TileRenderKey {
+
+	private final String task;
+	private final int x;
+	private final int y;
+	private final int z;
+	private final int tileRenderSize;
+	private final float userScale;
+	private final float textScale;
+	private final boolean transparent;
+	private final String engine;
+	private final String ext;
+	private final int hashCode;
+
+	public TileRenderKey(String task, int x, int y, int z, int tileRenderSize, float userScale, float textScale,
+			boolean transparent, String engine, String ext) {
+		this.task = task;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.tileRenderSize = tileRenderSize;
+		this.userScale = userScale;
+		this.textScale = textScale;
+		this.transparent = transparent;
+		this.engine = engine;
+		this.ext = ext;
+		this.hashCode = Objects.hash(task, x, y, z, tileRenderSize, userScale, textScale, transparent, engine, ext);
+	}
+
+	public String getTask() {
+		return task;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getZ() {
+		return z;
+	}
+
+	public int getTileRenderSize() {
+		return tileRenderSize;
+	}
+
+	public float getUserScale() {
+		return userScale;
+	}
+
+	public float getTextScale() {
+		return textScale;
+	}
+
+	public boolean getTransparent() {
+		return transparent;
+	}
+
+	public String getEngine() {
+		return engine;
+	}
+
+	public String getExt() {
+		return ext;
+	}
+
+	/*
+	 * Relative file path of tile below task's cache folder, e.g. "12/2145/1434.256_1.0_1.0_o_hs.png"
+	 */
+	public String getPath() {
+		return z + "/" + x + "/" + y + "." + tileRenderSize + "_" + userScale + "_" + textScale + "_" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+				+ (transparent ? "t" : "o") + "_" + engine + "." + ext; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (!(obj instanceof TileRenderKey)) return false;
+		TileRenderKey other = (TileRenderKey) obj;
+		return x == other.x && y == other.y && z == other.z && tileRenderSize == other.tileRenderSize
+				&& Float.compare(userScale, other.userScale) == 0 && Float.compare(textScale, other.textScale) == 0
+				&& transparent == other.transparent && task.equals(other.task) && engine.equals(other.engine)
+				&& ext.equals(other.ext);
+	}
+
+	@Override
+	public String toString() {
+		return task + ":" + getPath(); //$NON-NLS-1$
+	}
+}
@@ -0,0 +1,125 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background re-rendering of stale tiles, i.e. tiles cached before their task's properties or render theme changed.
+ * Stale tiles served to clients are collected with their number of requests and re-rendered most requested first.
+ * Tiles are re-rendered one at a time as background renders of the render scheduler, at most "rate" renders per second,
+ * so that re-rendering neither delays interactive renders nor fills the render queue.
+ * Re-rendered tiles are put into tile cache and their stale tiles are dropped.
+ */
+public class TileRevalidator {
+
+	private final static Logger logger = LoggerFactory.getLogger(TileRevalidator.class);
+
+	// Stale tiles beyond this limit are collected when requested again
+	private final static int MAX_PENDING = 100000;
+
+	private final MapsforgeHandler mapsforgeHandler;
+	private final long intervalNanos;
+	// stale tile -> requests since tile was served stale first
+	private final Map<TileRenderKey, Long> pending = new HashMap<TileRenderKey, Long>();
+	private long served = 0;
+	private long revalidated = 0;
+
+	public TileRevalidator(MapsforgeHandler mapsforgeHandler, int rate) {
+		this.mapsforgeHandler = mapsforgeHandler;
+		intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		Thread thread = new Thread(null, this::work, "TileRevalidator"); //$NON-NLS-1$
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * Count request of tile served stale, tile waits for re-rendering
+	 */
+	public synchronized void request(TileRenderKey tileRenderKey) {
+		served++;
+		Long requests = pending.get(tileRenderKey);
+		if (requests == null && pending.size() >= MAX_PENDING) return;
+		pending.put(tileRenderKey, requests == null ? 1 : requests + 1);
+		notify();
+	}
+
+	/*
+	 * Remove and return most requested stale tile, waiting for one if none
+	 */
+	private synchronized Map.Entry<TileRenderKey, Long> take() throws InterruptedException {
+		while (pending.isEmpty()) wait();
+		Map.Entry<TileRenderKey, Long> mostRequested = null;
+		for (Map.Entry<TileRenderKey, Long> entry : pending.entrySet())
+			if (mostRequested == null || entry.getValue() > mostRequested.getValue()) mostRequested = entry;
+		pending.remove(mostRequested.getKey());
+		return mostRequested;
+	}
+
+	private void work() {
+		while (true) {
+			try {
+				Map.Entry<TileRenderKey, Long> stale = take();
+				long startTime = System.nanoTime();
+				if (revalidate(stale.getKey(), stale.getValue())) {
+					long delay = startTime + intervalNanos - System.nanoTime();
+					if (delay > 0) TimeUnit.NANOSECONDS.sleep(delay);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Re-render stale tile unless rendered meanwhile, e.g. as prefetch of its metatile block
+	 * Return whether a render was started
+	 */
+	private boolean revalidate(TileRenderKey tileRenderKey, long requests) throws InterruptedException {
+		MapsforgeTileCache mapsforgeTileCache = mapsforgeHandler.getTileCache();
+		MapsforgeTaskHandler mapsforgeTaskHandler = mapsforgeHandler.getTasksHandler().get(tileRenderKey.getTask());
+		// Tiles of removed task are gone already
+		if (mapsforgeTaskHandler == null) return false;
+		boolean rendered = !mapsforgeTileCache.contains(tileRenderKey);
+		if (rendered) {
+			try {
+				mapsforgeTaskHandler.renderTileAsync(tileRenderKey, RenderScheduler.PRIORITY_BACKGROUND, null,
+						mapsforgeHandler.getRenderScheduler()).get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RejectedExecutionException) {
+					// Render queue full, tile is tried again after interval
+					synchronized (this) {
+						pending.merge(tileRenderKey, requests, Long::sum);
+					}
+					return true;
+				}
+				logger.warn("Can't re-render stale tile " + tileRenderKey + ": " + e.getCause().getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		// Tile no longer covered by map data isn't cached, its stale tile is dropped nevertheless
+		mapsforgeTileCache.removeStale(tileRenderKey);
+		if (rendered) {
+			synchronized (this) {
+				revalidated++;
+			}
+		}
+		return rendered;
+	}
+
+	public synchronized long getServed() {
+		return served;
+	}
+
+	public synchronized long getRevalidated() {
+		return revalidated;
+	}
+
+	public synchronized int getPending() {
+		return pending.size();
+	}
+}
@@ -0,0 +1,628 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Lossless WebP (VP8L) encoder for rendered tiles.
+ * Tiles with at most 256 colors are written through the color indexing transform,
+ * packing up to 8 pixels into one when there are few colors.
+ * Other tiles are written through the subtract green and predictor transforms,
+ * using the predictor mode of least residuals per block.
+ * Pixels are LZ77 coded with hash chains and prefix (Huffman) codes,
+ * a color cache and meta prefix codes are not used.
+ */
+public class WebpEncoder {
+
+	private final static int PREDICTOR_TRANSFORM = 0;
+	private final static int SUBTRACT_GREEN_TRANSFORM = 2;
+	private final static int COLOR_INDEXING_TRANSFORM = 3;
+	// Predictor block size 32 x 32 pixels
+	private final static int PREDICTOR_BITS = 5;
+	private final static int PREDICTOR_MODES = 14;
+
+	private final static int NUM_LITERAL_CODES = 256;
+	private final static int NUM_LENGTH_CODES = 24;
+	private final static int NUM_DISTANCE_CODES = 40;
+	private final static int NUM_CODE_LENGTH_CODES = 19;
+	private final static int[] CODE_LENGTH_ORDER = { 17, 18, 0, 1, 2, 3, 4, 5, 16, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 };
+	private final static int MAX_CODE_LENGTH = 15;
+	private final static int MAX_CODE_LENGTH_CODE_LENGTH = 7;
+	private final static int MAX_IMAGE_SIZE = 16384;
+
+	private final static int MIN_MATCH = 3;
+	private final static int MAX_MATCH = 4096;
+	private final static int HASH_BITS = 16;
+	private final static int MAX_CHAIN = 16;
+
+	public byte[] encode(BufferedImage image) {
+		return encode(PngEncoder.getPixels(image), image.getWidth(), image.getHeight(), image.getColorModel().hasAlpha());
+	}
+
+	/*
+	 * Encode pixels 0xaarrggbb, alpha bits are ignored unless alpha is set
+	 */
+	public byte[] encode(int[] pixels, int width, int height, boolean alpha) {
+		if (width > MAX_IMAGE_SIZE || height > MAX_IMAGE_SIZE)
+			throw new IllegalArgumentException("Image too large for WebP: " + width + "x" + height); //$NON-NLS-1$
+		int pixelCount = width * height;
+		int[] argb = new int[pixelCount];
+		for (int i = 0; i < pixelCount; i++) argb[i] = alpha ? pixels[i] : pixels[i] | 0xff000000;
+
+		BitWriter bitWriter = new BitWriter(pixelCount / 2 + 1024);
+		bitWriter.write(0x2f, 8); // signature
+		bitWriter.write(width - 1, 14);
+		bitWriter.write(height - 1, 14);
+		bitWriter.write(alpha ? 1 : 0, 1);
+		bitWriter.write(0, 3); // version
+
+		int imageWidth = width;
+		int[] palette = createPalette(argb);
+		if (palette != null) {
+			bitWriter.write(1, 1);
+			bitWriter.write(COLOR_INDEXING_TRANSFORM, 2);
+			bitWriter.write(palette.length - 1, 8);
+			int[] deltas = new int[palette.length];
+			for (int i = 0; i < palette.length; i++) deltas[i] = i == 0 ? palette[0] : subPixels(palette[i], palette[i - 1]);
+			writeImage(bitWriter, deltas, palette.length, 1, false);
+			int widthBits = palette.length <= 2 ? 3 : palette.length <= 4 ? 2 : palette.length <= 16 ? 1 : 0;
+			imageWidth = (width + (1 << widthBits) - 1) >> widthBits;
+			argb = bundleIndices(argb, palette, width, height, imageWidth, widthBits);
+		} else {
+			bitWriter.write(1, 1);
+			bitWriter.write(SUBTRACT_GREEN_TRANSFORM, 2);
+			for (int i = 0; i < pixelCount; i++) {
+				int green = (argb[i] >>> 8) & 0xff;
+				argb[i] = (argb[i] & 0xff00ff00) | ((((argb[i] >>> 16) - green) & 0xff) << 16) | ((argb[i] - green) & 0xff);
+			}
+			bitWriter.write(1, 1);
+			bitWriter.write(PREDICTOR_TRANSFORM, 2);
+			bitWriter.write(PREDICTOR_BITS - 2, 3);
+			argb = predict(bitWriter, argb, width, height);
+		}
+		bitWriter.write(0, 1); // no further transforms
+		writeImage(bitWriter, argb, imageWidth, height, true);
+
+		int dataSize = bitWriter.size();
+		int padding = dataSize & 1;
+		byte[] webp = new byte[20 + dataSize + padding];
+		writeTag(webp, 0, "RIFF"); //$NON-NLS-1$
+		writeLittleEndian(webp, 4, 12 + dataSize + padding);
+		writeTag(webp, 8, "WEBP"); //$NON-NLS-1$
+		writeTag(webp, 12, "VP8L"); //$NON-NLS-1$
+		writeLittleEndian(webp, 16, dataSize);
+		System.arraycopy(bitWriter.buffer(), 0, webp, 20, dataSize);
+		return webp;
+	}
+
+	/*
+	 * Return sorted colors of pixels, null if more than 256 colors
+	 */
+	private static int[] createPalette(int[] argb) {
+		int[] colors = new int[256];
+		int size = 0;
+		int lastColor = 0;
+		for (int i = 0; i < argb.length; i++) {
+			int color = argb[i];
+			if (i > 0 && color == lastColor) continue;
+			lastColor = color;
+			int index = Arrays.binarySearch(colors, 0, size, color);
+			if (index >= 0) continue;
+			if (size == colors.length) return null;
+			index = -index - 1;
+			System.arraycopy(colors, index, colors, index + 1, size - index);
+			colors[index] = color;
+			size++;
+		}
+		return Arrays.copyOf(colors, size);
+	}
+
+	/*
+	 * Replace pixels by palette indices in green channel, several indices per pixel if widthBits > 0
+	 */
+	private static int[] bundleIndices(int[] argb, int[] palette, int width, int height, int imageWidth, int widthBits) {
+		int[] bundled = new int[imageWidth * height];
+		int indicesPerPixel = 1 << widthBits;
+		int bitsPerIndex = 8 >> widthBits;
+		int lastColor = 0;
+		int lastIndex = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int color = argb[y * width + x];
+				if (color != lastColor || (x == 0 && y == 0)) {
+					lastColor = color;
+					lastIndex = Arrays.binarySearch(palette, color);
+				}
+				bundled[y * imageWidth + (x >> widthBits)] |= lastIndex << (8 + bitsPerIndex * (x & (indicesPerPixel - 1)));
+			}
+		}
+		for (int i = 0; i < bundled.length; i++) bundled[i] |= 0xff000000;
+		return bundled;
+	}
+
+	/*
+	 * Choose predictor mode of least residuals per block, write modes as sub-image and return residuals
+	 */
+	private static int[] predict(BitWriter bitWriter, int[] argb, int width, int height) {
+		int blockSize = 1 << PREDICTOR_BITS;
+		int blocksWidth = (width + blockSize - 1) >> PREDICTOR_BITS;
+		int blocksHeight = (height + blockSize - 1) >> PREDICTOR_BITS;
+		int[] modes = new int[blocksWidth * blocksHeight];
+		int[] residuals = new int[argb.length];
+		for (int blockY = 0; blockY < blocksHeight; blockY++) {
+			for (int blockX = 0; blockX < blocksWidth; blockX++) {
+				int xMin = blockX << PREDICTOR_BITS;
+				int yMin = blockY << PREDICTOR_BITS;
+				int xMax = Math.min(width, xMin + blockSize);
+				int yMax = Math.min(height, yMin + blockSize);
+				int bestMode = 0;
+				long bestCost = Long.MAX_VALUE;
+				for (int mode = 0; mode < PREDICTOR_MODES; mode++) {
+					long cost = 0;
+					for (int y = yMin; y < yMax && cost < bestCost; y++) {
+						for (int x = xMin; x < xMax; x++) {
+							int pos = y * width + x;
+							int residual = subPixels(argb[pos], predict(argb, pos, x, y, width, mode));
+							cost += Math.abs((byte) (residual >>> 24)) + Math.abs((byte) (residual >>> 16))
+									+ Math.abs((byte) (residual >>> 8)) + Math.abs((byte) residual);
+						}
+					}
+					if (cost < bestCost) {
+						bestCost = cost;
+						bestMode = mode;
+					}
+				}
+				modes[blockY * blocksWidth + blockX] = 0xff000000 | (bestMode << 8);
+				for (int y = yMin; y < yMax; y++) {
+					for (int x = xMin; x < xMax; x++) {
+						int pos = y * width + x;
+						residuals[pos] = subPixels(argb[pos], predict(argb, pos, x, y, width, bestMode));
+					}
+				}
+			}
+		}
+		writeImage(bitWriter, modes, blocksWidth, blocksHeight, false);
+		return residuals;
+	}
+
+	/*
+	 * Predicted pixel, pixels of top row are predicted by left pixel,
+	 * pixels of left column by top pixel
+	 */
+	private static int predict(int[] argb, int pos, int x, int y, int width, int mode) {
+		if (y == 0) return x == 0 ? 0xff000000 : argb[pos - 1];
+		if (x == 0) return argb[pos - width];
+		int left = argb[pos - 1];
+		int top = argb[pos - width];
+		int topLeft = argb[pos - width - 1];
+		// Top right pixel of rightmost column is leftmost pixel of current row
+		int topRight = argb[pos - width + 1];
+		switch (mode) {
+		case 0:
+			return 0xff000000;
+		case 1:
+			return left;
+		case 2:
+			return top;
+		case 3:
+			return topRight;
+		case 4:
+			return topLeft;
+		case 5:
+			return average(average(left, topRight), top);
+		case 6:
+			return average(left, topLeft);
+		case 7:
+			return average(left, top);
+		case 8:
+			return average(topLeft, top);
+		case 9:
+			return average(top, topRight);
+		case 10:
+			return average(average(left, topLeft), average(top, topRight));
+		case 11:
+			return select(left, top, topLeft);
+		case 12:
+			return clampAddSubtractFull(left, top, topLeft);
+		default:
+			return clampAddSubtractHalf(average(left, top), topLeft);
+		}
+	}
+
+	private static int average(int a, int b) {
+		return (((a ^ b) & 0xfefefefe) >>> 1) + (a & b);
+	}
+
+	private static int select(int left, int top, int topLeft) {
+		int distanceLeft = 0;
+		int distanceTop = 0;
+		for (int shift = 0; shift < 32; shift += 8) {
+			int l = (left >>> shift) & 0xff;
+			int t = (top >>> shift) & 0xff;
+			int tl = (topLeft >>> shift) & 0xff;
+			distanceLeft += Math.abs(t - tl);
+			distanceTop += Math.abs(l - tl);
+		}
+		return distanceLeft < distanceTop ? left : top;
+	}
+
+	private static int clampAddSubtractFull(int a, int b, int c) {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 8)
+			result |= clamp(((a >>> shift) & 0xff) + ((b >>> shift) & 0xff) - ((c >>> shift) & 0xff)) << shift;
+		return result;
+	}
+
+	private static int clampAddSubtractHalf(int a, int b) {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 8) {
+			int ac = (a >>> shift) & 0xff;
+			result |= clamp(ac + (ac - ((b >>> shift) & 0xff)) / 2) << shift;
+		}
+		return result;
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+
+	// Per channel difference modulo 256
+	private static int subPixels(int a, int b) {
+		int alphaGreen = 0x00ff00ff + (a & 0xff00ff00) - (b & 0xff00ff00);
+		int redBlue = 0xff00ff00 + (a & 0x00ff00ff) - (b & 0x00ff00ff);
+		return (alphaGreen & 0xff00ff00) | (redBlue & 0x00ff00ff);
+	}
+
+	/*
+	 * Write entropy coded image, main image with meta prefix code flag
+	 */
+	private static void writeImage(BitWriter bitWriter, int[] argb, int width, int height, boolean main) {
+		bitWriter.write(0, 1); // no color cache
+		if (main) bitWriter.write(0, 1); // no meta prefix codes
+
+		// Backward references are kept as length | distance code << 16, literals have length 0
+		int pixelCount = width * height;
+		int[] tokens = new int[pixelCount];
+		int[] lengths = new int[pixelCount];
+		int tokenCount = findBackwardReferences(argb, width, pixelCount, tokens, lengths);
+
+		int[] greenCounts = new int[NUM_LITERAL_CODES + NUM_LENGTH_CODES];
+		int[] redCounts = new int[NUM_LITERAL_CODES];
+		int[] blueCounts = new int[NUM_LITERAL_CODES];
+		int[] alphaCounts = new int[NUM_LITERAL_CODES];
+		int[] distanceCounts = new int[NUM_DISTANCE_CODES];
+		for (int i = 0; i < tokenCount; i++) {
+			if (lengths[i] == 0) {
+				int pixel = tokens[i];
+				greenCounts[(pixel >>> 8) & 0xff]++;
+				redCounts[(pixel >>> 16) & 0xff]++;
+				blueCounts[pixel & 0xff]++;
+				alphaCounts[pixel >>> 24]++;
+			} else {
+				greenCounts[NUM_LITERAL_CODES + prefixCode(lengths[i])]++;
+				distanceCounts[prefixCode(tokens[i])]++;
+			}
+		}
+		PrefixCode green = new PrefixCode(greenCounts, MAX_CODE_LENGTH);
+		PrefixCode red = new PrefixCode(redCounts, MAX_CODE_LENGTH);
+		PrefixCode blue = new PrefixCode(blueCounts, MAX_CODE_LENGTH);
+		PrefixCode alpha = new PrefixCode(alphaCounts, MAX_CODE_LENGTH);
+		PrefixCode distance = new PrefixCode(distanceCounts, MAX_CODE_LENGTH);
+		for (PrefixCode prefixCode : new PrefixCode[] { green, red, blue, alpha, distance }) prefixCode.writeCode(bitWriter);
+
+		for (int i = 0; i < tokenCount; i++) {
+			if (lengths[i] == 0) {
+				int pixel = tokens[i];
+				green.writeSymbol(bitWriter, (pixel >>> 8) & 0xff);
+				red.writeSymbol(bitWriter, (pixel >>> 16) & 0xff);
+				blue.writeSymbol(bitWriter, pixel & 0xff);
+				alpha.writeSymbol(bitWriter, pixel >>> 24);
+			} else {
+				green.writeSymbol(bitWriter, NUM_LITERAL_CODES + prefixCode(lengths[i]));
+				writeExtraBits(bitWriter, lengths[i]);
+				distance.writeSymbol(bitWriter, prefixCode(tokens[i]));
+				writeExtraBits(bitWriter, tokens[i]);
+			}
+		}
+	}
+
+	/*
+	 * LZ77 parsing trying left pixel, top pixel and hash chain of pixel pairs,
+	 * tokens are literal pixels or distance codes of backward references, return number of tokens
+	 */
+	private static int findBackwardReferences(int[] argb, int width, int pixelCount, int[] tokens, int[] lengths) {
+		int[] head = new int[1 << HASH_BITS];
+		Arrays.fill(head, -1);
+		int[] chain = new int[pixelCount];
+		int tokenCount = 0;
+		int pos = 0;
+		while (pos < pixelCount) {
+			int maxLength = Math.min(MAX_MATCH, pixelCount - pos);
+			int bestLength = 0;
+			int bestDistance = 0;
+			if (maxLength >= MIN_MATCH) {
+				if (pos >= 1) {
+					bestLength = matchLength(argb, pos - 1, pos, maxLength);
+					bestDistance = 1;
+				}
+				if (pos >= width && bestLength < maxLength) {
+					int length = matchLength(argb, pos - width, pos, maxLength);
+					if (length > bestLength) {
+						bestLength = length;
+						bestDistance = width;
+					}
+				}
+				int candidate = head[hash(argb, pos)];
+				for (int depth = 0; candidate >= 0 && depth < MAX_CHAIN && bestLength < maxLength; depth++) {
+					int length = matchLength(argb, candidate, pos, maxLength);
+					if (length > bestLength) {
+						bestLength = length;
+						bestDistance = pos - candidate;
+					}
+					candidate = chain[candidate];
+				}
+			}
+			int end;
+			if (bestLength >= MIN_MATCH) {
+				tokens[tokenCount] = distanceCode(bestDistance, width);
+				lengths[tokenCount++] = bestLength;
+				end = pos + bestLength;
+			} else {
+				tokens[tokenCount] = argb[pos];
+				lengths[tokenCount++] = 0;
+				end = pos + 1;
+			}
+			for (; pos < end; pos++) {
+				if (pos + 1 >= pixelCount) continue;
+				int hash = hash(argb, pos);
+				chain[pos] = head[hash];
+				head[hash] = pos;
+			}
+		}
+		return tokenCount;
+	}
+
+	private static int hash(int[] argb, int pos) {
+		long key = ((long) argb[pos] << 32) ^ (argb[pos + 1] & 0xffffffffL);
+		return (int) ((key * 0x9e3779b97f4a7c15L) >>> (64 - HASH_BITS));
+	}
+
+	private static int matchLength(int[] argb, int from, int pos, int maxLength) {
+		int length = 0;
+		while (length < maxLength && argb[from + length] == argb[pos + length]) length++;
+		return length;
+	}
+
+	/*
+	 * Distance code of backward reference, short codes for top and left pixel
+	 */
+	private static int distanceCode(int distance, int width) {
+		if (distance == width) return 1;
+		if (distance == 1) return 2;
+		return distance + 120;
+	}
+
+	/*
+	 * Prefix code of value >= 1 of length or distance code
+	 */
+	private static int prefixCode(int value) {
+		int d = value - 1;
+		if (d < 4) return d;
+		int highestBit = 31 - Integer.numberOfLeadingZeros(d);
+		return 2 * highestBit + ((d >>> (highestBit - 1)) & 1);
+	}
+
+	private static void writeExtraBits(BitWriter bitWriter, int value) {
+		int d = value - 1;
+		if (d < 4) return;
+		int extraBits = 31 - Integer.numberOfLeadingZeros(d) - 1;
+		bitWriter.write(d & ((1 << extraBits) - 1), extraBits);
+	}
+
+	private static void writeTag(byte[] bytes, int offset, String tag) {
+		for (int i = 0; i < 4; i++) bytes[offset + i] = (byte) tag.charAt(i);
+	}
+
+	private static void writeLittleEndian(byte[] bytes, int offset, int value) {
+		for (int i = 0; i < 4; i++) bytes[offset + i] = (byte) (value >>> (8 * i));
+	}
+
+	/*
+	 * Canonical prefix code of symbol counts
+	 */
+	private static class PrefixCode {
+		final int[] lengths;
+		final int[] codes;
+		final int symbolCount;
+		final int firstSymbol;
+
+		PrefixCode(int[] counts, int maxLength) {
+			lengths = new int[counts.length];
+			codes = new int[counts.length];
+			int used = 0;
+			int first = 0;
+			for (int i = counts.length - 1; i >= 0; i--) {
+				if (counts[i] == 0) continue;
+				used++;
+				first = i;
+			}
+			symbolCount = used;
+			firstSymbol = first;
+			if (used == 1 && first >= NUM_LITERAL_CODES) {
+				// Single symbol not representable by simple code, add a second one
+				int[] twoCounts = counts.clone();
+				twoCounts[0] = 1;
+				computeLengths(twoCounts, maxLength);
+			} else {
+				computeLengths(counts, maxLength);
+			}
+			computeCodes();
+		}
+
+		/*
+		 * Huffman code lengths limited to maxLength by raising small counts until tree is flat enough
+		 */
+		private void computeLengths(int[] counts, int maxLength) {
+			int used = 0;
+			for (int count : counts) if (count > 0) used++;
+			if (used == 0) return;
+			if (used == 1) {
+				for (int i = 0; i < counts.length; i++) if (counts[i] > 0) lengths[i] = 1;
+				return;
+			}
+			int[] parents = new int[2 * counts.length];
+			for (long minCount = 1;; minCount *= 2) {
+				PriorityQueue<long[]> queue = new PriorityQueue<long[]>((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+				for (int i = 0; i < counts.length; i++)
+					if (counts[i] > 0) queue.add(new long[] { Math.max(counts[i], minCount), i });
+				int next = counts.length;
+				while (queue.size() > 1) {
+					long[] a = queue.poll();
+					long[] b = queue.poll();
+					parents[(int) a[1]] = next;
+					parents[(int) b[1]] = next;
+					queue.add(new long[] { a[0] + b[0], next++ });
+				}
+				int root = next - 1;
+				int maxDepth = 0;
+				for (int i = 0; i < counts.length; i++) {
+					if (counts[i] == 0) {
+						lengths[i] = 0;
+						continue;
+					}
+					int depth = 0;
+					for (int node = i; node != root; node = parents[node]) depth++;
+					lengths[i] = depth;
+					maxDepth = Math.max(maxDepth, depth);
+				}
+				if (maxDepth <= maxLength) return;
+			}
+		}
+
+		// Codes are bit reversed since bits are written least significant first
+		private void computeCodes() {
+			int[] lengthCounts = new int[MAX_CODE_LENGTH + 2];
+			for (int length : lengths) lengthCounts[length]++;
+			lengthCounts[0] = 0;
+			int[] nextCodes = new int[MAX_CODE_LENGTH + 2];
+			int code = 0;
+			for (int bits = 1; bits <= MAX_CODE_LENGTH + 1; bits++) {
+				code = (code + lengthCounts[bits - 1]) << 1;
+				nextCodes[bits] = code;
+			}
+			for (int i = 0; i < lengths.length; i++) {
+				if (lengths[i] == 0) continue;
+				codes[i] = Integer.reverse(nextCodes[lengths[i]]++) >>> (32 - lengths[i]);
+			}
+		}
+
+		/*
+		 * Write simple code for a single literal symbol, else normal code of run length coded lengths
+		 */
+		void writeCode(BitWriter bitWriter) {
+			if (symbolCount <= 1 && firstSymbol < NUM_LITERAL_CODES) {
+				bitWriter.write(1, 1); // simple code
+				bitWriter.write(0, 1); // one symbol
+				if (firstSymbol < 2) {
+					bitWriter.write(0, 1);
+					bitWriter.write(firstSymbol, 1);
+				} else {
+					bitWriter.write(1, 1);
+					bitWriter.write(firstSymbol, 8);
+				}
+				return;
+			}
+			bitWriter.write(0, 1); // normal code
+
+			// Code length symbols 0-15, 16 = repeat previous 3-6 times, 17 = 3-10 zeros, 18 = 11-138 zeros
+			int[] symbols = new int[lengths.length];
+			int[] extras = new int[lengths.length];
+			int symbolTotal = 0;
+			for (int i = 0; i < lengths.length;) {
+				int length = lengths[i];
+				int run = 1;
+				while (i + run < lengths.length && lengths[i + run] == length) run++;
+				i += run;
+				if (length == 0) {
+					while (run >= 11) {
+						int repeat = Math.min(run, 138);
+						symbols[symbolTotal] = 18;
+						extras[symbolTotal++] = repeat - 11;
+						run -= repeat;
+					}
+					if (run >= 3) {
+						symbols[symbolTotal] = 17;
+						extras[symbolTotal++] = run - 3;
+						run = 0;
+					}
+				} else {
+					symbols[symbolTotal++] = length;
+					run--;
+					while (run >= 3) {
+						int repeat = Math.min(run, 6);
+						symbols[symbolTotal] = 16;
+						extras[symbolTotal++] = repeat - 3;
+						run -= repeat;
+					}
+				}
+				while (run-- > 0) symbols[symbolTotal++] = length;
+			}
+
+			int[] codeLengthCounts = new int[NUM_CODE_LENGTH_CODES];
+			for (int i = 0; i < symbolTotal; i++) codeLengthCounts[symbols[i]]++;
+			PrefixCode codeLengthCode = new PrefixCode(codeLengthCounts, MAX_CODE_LENGTH_CODE_LENGTH);
+			int codeLengthCodes = NUM_CODE_LENGTH_CODES;
+			while (codeLengthCodes > 4 && codeLengthCode.lengths[CODE_LENGTH_ORDER[codeLengthCodes - 1]] == 0) codeLengthCodes--;
+			bitWriter.write(codeLengthCodes - 4, 4);
+			for (int i = 0; i < codeLengthCodes; i++) bitWriter.write(codeLengthCode.lengths[CODE_LENGTH_ORDER[i]], 3);
+			bitWriter.write(0, 1); // lengths of all symbols follow
+			for (int i = 0; i < symbolTotal; i++) {
+				codeLengthCode.writeSymbol(bitWriter, symbols[i]);
+				if (symbols[i] == 16) bitWriter.write(extras[i], 2);
+				else if (symbols[i] == 17) bitWriter.write(extras[i], 3);
+				else if (symbols[i] == 18) bitWriter.write(extras[i], 7);
+			}
+		}
+
+		// Codes of a single symbol take no bits
+		void writeSymbol(BitWriter bitWriter, int symbol) {
+			if (symbolCount <= 1 && firstSymbol < NUM_LITERAL_CODES) return;
+			bitWriter.write(codes[symbol], lengths[symbol]);
+		}
+	}
+
+	/*
+	 * Growable buffer of bits written least significant first
+	 */
+	private static class BitWriter {
+		private byte[] buffer;
+		private int size = 0;
+		private long bits = 0;
+		private int bitCount = 0;
+
+		BitWriter(int capacity) {
+			buffer = new byte[capacity];
+		}
+
+		void write(int value, int count) {
+			bits |= (value & ((1L << count) - 1)) << bitCount;
+			bitCount += count;
+			while (bitCount >= 8) {
+				if (size == buffer.length) buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+				buffer[size++] = (byte) bits;
+				bits >>>= 8;
+				bitCount -= 8;
+			}
+		}
+
+		int size() {
+			if (bitCount > 0) write(0, 8 - bitCount);
+			return size;
+		}
+
+		byte[] buffer() {
+			return buffer;
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.telemaxx.mapsforgesrv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class BlockPrefetchTest {
+
+	@Test
+	void requestedTilePrefetchesRestOfBlock() throws Exception {
+		try (TestServer testServer = TestServer.start("tilecache-memory=16\n", "world", "metatile=2\n")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			MapsforgeTileCache mapsforgeTileCache = testServer.mapsforgeHandler.getTileCache();
+			MapsforgeTaskHandler mapsforgeTaskHandler = testServer.mapsforgeHandler.getTasksHandler().get("world"); //$NON-NLS-1$
+			testServer.get("/3/5/3.png?task=world"); //$NON-NLS-1$
+			// Block of tile 5/3 spans tiles 4-5/2-3
+			for (int y = 2; y <= 3; y++) {
+				for (int x = 4; x <= 5; x++) {
+					TileRenderKey key = mapsforgeTaskHandler.getDefaultTileRenderKey(x, y, 3);
+					for (int i = 0; i < 200 && !mapsforgeTileCache.contains(key); i++) Thread.sleep(50);
+					assertTrue(mapsforgeTileCache.contains(key), "Tile " + key + " not prefetched"); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+			}
+			assertFalse(mapsforgeTileCache.contains(mapsforgeTaskHandler.getDefaultTileRenderKey(6, 2, 3)));
+			assertEquals(0, testServer.mapsforgeHandler.getRenderScheduler().getQueued());
+		}
+	}
+}
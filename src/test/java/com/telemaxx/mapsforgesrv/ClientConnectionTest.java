@@ -0,0 +1,87 @@
+package com.telemaxx.mapsforgesrv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+
+class ClientConnectionTest {
+
+	private static final String REQUEST = "GET /3/4/%d.png?task=world HTTP/1.1\r\nHost: localhost\r\n\r\n"; //$NON-NLS-1$
+
+	@Test
+	void closedHttp11ConnectionCancelsQueuedRender() throws Exception {
+		try (TestServer testServer = TestServer.start("render-threads=1\n", "world", "")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			RenderScheduler renderScheduler = testServer.mapsforgeHandler.getRenderScheduler();
+			RenderMetrics renderMetrics = testServer.mapsforgeHandler.getTasksHandler().get("world").getRenderMetrics(); //$NON-NLS-1$
+			CountDownLatch latch = blockRenderThread(renderScheduler);
+			try (Socket socket = new Socket("127.0.0.1", testServer.getPort())) { //$NON-NLS-1$
+				socket.getOutputStream().write(String.format(REQUEST, 2).getBytes(StandardCharsets.US_ASCII));
+				await(() -> renderScheduler.getQueued() == 1);
+			}
+			latch.countDown();
+			await(() -> renderMetrics.getCancelledWaiting() == 1);
+			assertEquals(0, renderMetrics.getCancelledRendering());
+		}
+	}
+
+	@Test
+	void probingKeepsPipelinedRequests() throws Exception {
+		try (TestServer testServer = TestServer.start("render-threads=1\n", "world", "")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			RenderScheduler renderScheduler = testServer.mapsforgeHandler.getRenderScheduler();
+			RenderMetrics renderMetrics = testServer.mapsforgeHandler.getTasksHandler().get("world").getRenderMetrics(); //$NON-NLS-1$
+			CountDownLatch latch = blockRenderThread(renderScheduler);
+			try (Socket socket = new Socket("127.0.0.1", testServer.getPort())) { //$NON-NLS-1$
+				socket.setSoTimeout(10000);
+				OutputStream outputStream = socket.getOutputStream();
+				outputStream.write(String.format(REQUEST, 2).getBytes(StandardCharsets.US_ASCII));
+				await(() -> renderScheduler.getQueued() == 1);
+				// Second request is left on connection by jetty while first one waits for its render
+				outputStream.write(String.format(REQUEST, 3).getBytes(StandardCharsets.US_ASCII));
+				Thread.sleep(200);
+				latch.countDown();
+				InputStream inputStream = socket.getInputStream();
+				StringBuilder responses = new StringBuilder();
+				byte[] buffer = new byte[8192];
+				while (count(responses, "HTTP/1.1 200 OK") < 2) { //$NON-NLS-1$
+					int read = inputStream.read(buffer);
+					assertTrue(read > 0, "Connection closed after " + count(responses, "HTTP/1.1 200 OK") + " responses"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					responses.append(new String(buffer, 0, read, StandardCharsets.ISO_8859_1));
+				}
+			}
+			assertEquals(0, renderMetrics.getCancelledWaiting() + renderMetrics.getCancelledRendering());
+		}
+	}
+
+	/*
+	 * Occupy single render thread until latch is counted down
+	 */
+	private static CountDownLatch blockRenderThread(RenderScheduler renderScheduler) throws Exception {
+		CountDownLatch latch = new CountDownLatch(1);
+		renderScheduler.submit("world", RenderScheduler.PRIORITY_INTERACTIVE, () -> { //$NON-NLS-1$
+			latch.await();
+			return null;
+		}, new CompletableFuture<Object>());
+		await(() -> renderScheduler.getRunning() == 1);
+		return latch;
+	}
+
+	private static void await(BooleanSupplier condition) throws Exception {
+		for (int i = 0; i < 200 && !condition.getAsBoolean(); i++) Thread.sleep(50);
+		assertTrue(condition.getAsBoolean());
+	}
+
+	private static int count(CharSequence text, String part) {
+		int count = 0;
+		for (int i = text.toString().indexOf(part); i >= 0; i = text.toString().indexOf(part, i + 1)) count++;
+		return count;
+	}
+}
@@ -0,0 +1,93 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.datastore.MapReadResult;
+import org.mapsforge.map.reader.MapFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares map file access modes "channel" and "mmap" by reading map data
+ * of the same tile set through both, alternating modes per round.
+ * Usage: gradlew mapFileBenchmark --args="mapfile [zoom-min-max] [rounds] [threads]"
+ */
+public class MapFileBenchmark {
+
+	private final static Logger logger = LoggerFactory.getLogger(MapFileBenchmark.class);
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: MapFileBenchmark mapfile [zoom-min-max] [rounds] [threads]"); //$NON-NLS-1$
+			System.exit(1);
+		}
+		File file = new File(args[0]);
+		String[] zooms = (args.length > 1 ? args[1] : "10-14").split("-"); //$NON-NLS-1$ //$NON-NLS-2$
+		int zoomMin = Integer.parseInt(zooms[0]);
+		int zoomMax = Integer.parseInt(zooms[zooms.length - 1]);
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+		List<Tile> tiles = new ArrayList<Tile>();
+		MapFile mapFile = new MapFile(file);
+		BoundingBox boundingBox = mapFile.boundingBox();
+		mapFile.close();
+		for (int zoom = zoomMin; zoom <= zoomMax; zoom++) {
+			int xMin = MercatorProjection.longitudeToTileX(boundingBox.minLongitude, (byte) zoom);
+			int xMax = MercatorProjection.longitudeToTileX(boundingBox.maxLongitude, (byte) zoom);
+			int yMin = MercatorProjection.latitudeToTileY(boundingBox.maxLatitude, (byte) zoom);
+			int yMax = MercatorProjection.latitudeToTileY(boundingBox.minLatitude, (byte) zoom);
+			for (int x = xMin; x <= xMax; x++)
+				for (int y = yMin; y <= yMax; y++)
+					tiles.add(new Tile(x, y, (byte) zoom, PropertiesParser.DEFAULT_TILE_RENDERSIZE));
+		}
+		logger.info("Benchmarking '" + file + "': " + tiles.size() + " tiles, zoom levels " + zoomMin + "-" + zoomMax //$NON-NLS-1$
+				+ ", " + rounds + " rounds, " + threads + " threads"); //$NON-NLS-1$
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		// First round of each mode warms up page cache and JIT
+		for (int round = 0; round <= rounds; round++) {
+			for (String access : PropertiesParser.AUTHORIZED_MAPFILE_ACCESS) {
+				MapFile benchmarkMapFile = access.equals(PropertiesParser.MAPFILE_ACCESS_MMAP)
+						? new MapFile(new MappedFileChannel(file.toPath()), file.lastModified(), null)
+						: new MapFile(file);
+				long nanos = run(executor, benchmarkMapFile, tiles, threads);
+				benchmarkMapFile.close();
+				logger.info(String.format(Locale.ROOT, "%s %-7s %8d ms %10.1f tiles/s", //$NON-NLS-1$
+						round == 0 ? "Warm-up" : "Round " + round, access, nanos / 1000000, tiles.size() * 1e9 / nanos)); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+		executor.shutdown();
+	}
+
+	private static long run(ExecutorService executor, MapFile mapFile, List<Tile> tiles, int threads) throws Exception {
+		AtomicInteger next = new AtomicInteger();
+		AtomicLong ways = new AtomicLong();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		long start = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			futures.add(executor.submit(() -> {
+				int index;
+				while ((index = next.getAndIncrement()) < tiles.size()) {
+					MapReadResult mapReadResult = mapFile.readMapData(tiles.get(index));
+					if (mapReadResult != null) ways.addAndGet(mapReadResult.ways.size());
+				}
+			}));
+		}
+		for (Future<?> future : futures) future.get();
+		long nanos = System.nanoTime() - start;
+		logger.debug(ways.get() + " ways read"); //$NON-NLS-1$
+		return nanos;
+	}
+}
@@ -0,0 +1,50 @@
+package com.telemaxx.mapsforgesrv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.telemaxx.mapsforgesrv.MapFileRegistry.SharedMapFile;
+
+class MapFileRegistryTest {
+
+	@Test
+	void sharesMapFileUntilReleasedByLastUser(@TempDir Path folder) throws Exception {
+		Path mapFile = TestServer.copyWorldMap(folder, "world.map"); //$NON-NLS-1$
+		MapFileRegistry mapFileRegistry = new MapFileRegistry(null, 4);
+		SharedMapFile first = mapFileRegistry.acquire(mapFile.toFile(), null, PropertiesParser.MAPFILE_ACCESS_CHANNEL);
+		SharedMapFile second = mapFileRegistry.acquire(mapFile.toFile(), null, PropertiesParser.MAPFILE_ACCESS_CHANNEL);
+		assertSame(first, second);
+		assertEquals(1, mapFileRegistry.getCount());
+		mapFileRegistry.release(first.key);
+		assertEquals(1, mapFileRegistry.getCount());
+		mapFileRegistry.release(second.key);
+		assertEquals(0, mapFileRegistry.getCount());
+	}
+
+	@Test
+	void failedOpenIsNotRegistered(@TempDir Path folder) throws Exception {
+		Path badMapFile = Files.write(folder.resolve("bad.map"), new byte[1024]); //$NON-NLS-1$
+		MapFileRegistry mapFileRegistry = new MapFileRegistry(null, 4);
+		assertThrows(Exception.class, () -> mapFileRegistry.acquire(badMapFile.toFile(), null, PropertiesParser.MAPFILE_ACCESS_CHANNEL));
+		assertEquals(0, mapFileRegistry.getCount());
+	}
+
+	@Test
+	void failedTaskStartReleasesMapFiles(@TempDir Path folder) throws Exception {
+		Path goodMapFile = TestServer.copyWorldMap(folder, "good.map"); //$NON-NLS-1$
+		Path badMapFile = Files.write(folder.resolve("bad.map"), new byte[1024]); //$NON-NLS-1$
+		try (TestServer testServer = TestServer.start("", //$NON-NLS-1$
+				"broken", "mapfiles=" + goodMapFile + "," + badMapFile + "\n")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			assertNull(testServer.mapsforgeHandler.getTasksHandler().get("broken")); //$NON-NLS-1$
+			assertEquals(0, testServer.mapsforgeHandler.getMapFileRegistry().getCount());
+		}
+	}
+}
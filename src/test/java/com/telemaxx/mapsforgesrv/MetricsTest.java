@@ -0,0 +1,51 @@
+package com.telemaxx.mapsforgesrv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MetricsTest {
+
+	@Test
+	void reportsTileDiskCacheHitsAndMisses(@TempDir Path folder) throws Exception {
+		try (TestServer testServer = TestServer.start("tilecache-folder=" + folder + "\n", "world", "")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			testServer.mapsforgeHandler.getTileCache().awaitIndexed();
+			// Rendered on miss, served from disk cache on hit
+			testServer.get("/3/4/2.png?task=world"); //$NON-NLS-1$
+			testServer.get("/3/4/2.png?task=world"); //$NON-NLS-1$
+			String metrics = testServer.get("/metrics"); //$NON-NLS-1$
+			assertEquals(1, getMetric(metrics, "mapsforgesrv_tile_disk_cache_hits_total")); //$NON-NLS-1$
+			assertEquals(1, getMetric(metrics, "mapsforgesrv_tile_disk_cache_misses_total")); //$NON-NLS-1$
+			assertEquals(1, getMetric(metrics, "mapsforgesrv_tile_disk_cache_tiles")); //$NON-NLS-1$
+			assertFalse(metrics.contains("mapsforgesrv_tile_memory_cache_hits_total")); //$NON-NLS-1$
+		}
+	}
+
+	@Test
+	void reportsTileMemoryCacheHitsAndMisses() throws Exception {
+		try (TestServer testServer = TestServer.start("tilecache-memory=16\n", "world", "")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			testServer.get("/3/4/2.png?task=world"); //$NON-NLS-1$
+			testServer.get("/3/4/2.png?task=world"); //$NON-NLS-1$
+			String metrics = testServer.get("/metrics"); //$NON-NLS-1$
+			assertEquals(1, getMetric(metrics, "mapsforgesrv_tile_memory_cache_hits_total")); //$NON-NLS-1$
+			assertEquals(1, getMetric(metrics, "mapsforgesrv_tile_memory_cache_misses_total")); //$NON-NLS-1$
+			assertFalse(metrics.contains("mapsforgesrv_tile_disk_cache_hits_total")); //$NON-NLS-1$
+		}
+	}
+
+	/*
+	 * Value of metric without labels
+	 */
+	static double getMetric(String metrics, String name) {
+		Matcher matcher = Pattern.compile("(?m)^" + Pattern.quote(name) + " (\\S+)$").matcher(metrics); //$NON-NLS-1$ //$NON-NLS-2$
+		assertTrue(matcher.find(), "Metric " + name + " missing"); //$NON-NLS-1$ //$NON-NLS-2$
+		return Double.parseDouble(matcher.group(1));
+	}
+}
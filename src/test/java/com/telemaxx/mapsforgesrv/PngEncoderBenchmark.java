@@ -0,0 +1,105 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares encode time and size of PNG tiles written by ImageIO and by PngEncoder.
+ * Tiles are read from image files of a folder, e.g. a seeded tile cache folder,
+ * and converted to the pixel layout of rendered tiles.
+ * PngEncoder output is decoded once and checked to match the source pixels.
+ * Usage: gradlew pngEncoderBenchmark --args="folder [rounds] [compression] [filter]"
+ */
+public class PngEncoderBenchmark {
+
+	private final static Logger logger = LoggerFactory.getLogger(PngEncoderBenchmark.class);
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: PngEncoderBenchmark folder [rounds] [compression] [filter]"); //$NON-NLS-1$
+			System.exit(1);
+		}
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int compression = args.length > 2 ? Integer.parseInt(args[2]) : PropertiesParser.DEFAULT_PNG_COMPRESSION;
+		String filter = args.length > 3 ? args[3] : PropertiesParser.DEFAULT_PNG_FILTER;
+		PngEncoder pngEncoder = new PngEncoder(compression, filter);
+
+		List<BufferedImage> images = new ArrayList<BufferedImage>();
+		List<Path> paths;
+		try (Stream<Path> stream = Files.walk(new File(args[0]).toPath())) {
+			paths = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+		for (Path path : paths) {
+			BufferedImage image;
+			try {
+				image = ImageIO.read(path.toFile());
+			} catch (IOException e) {
+				continue;
+			}
+			if (image == null) continue;
+			BufferedImage tile = new BufferedImage(image.getWidth(), image.getHeight(),
+					image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+			tile.getGraphics().drawImage(image, 0, 0, null);
+			images.add(tile);
+		}
+		if (images.isEmpty()) {
+			logger.error("No images found in '" + args[0] + "'"); //$NON-NLS-1$
+			System.exit(1);
+		}
+		logger.info("Benchmarking " + images.size() + " tiles of '" + args[0] + "': " + rounds + " rounds, compression " + compression //$NON-NLS-1$
+				+ ", filter " + filter); //$NON-NLS-1$
+
+		int mismatches = 0;
+		for (BufferedImage image : images) {
+			BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(pngEncoder.encode(image)));
+			int width = image.getWidth();
+			int height = image.getHeight();
+			int mask = image.getColorModel().hasAlpha() ? 0xffffffff : 0x00ffffff;
+			int[] expected = image.getRGB(0, 0, width, height, null, 0, width);
+			int[] actual = decoded.getRGB(0, 0, width, height, null, 0, width);
+			for (int i = 0; i < expected.length; i++) {
+				if ((expected[i] & mask) != (actual[i] & mask)) {
+					mismatches++;
+					break;
+				}
+			}
+		}
+		if (mismatches > 0) logger.error(mismatches + " tiles not encoded losslessly"); //$NON-NLS-1$
+
+		// First round warms up JIT
+		for (int round = 0; round <= rounds; round++) {
+			long bytes = 0;
+			long start = System.nanoTime();
+			for (BufferedImage image : images) {
+				ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+				ImageIO.write(image, "png", outputStream); //$NON-NLS-1$
+				bytes += outputStream.size();
+			}
+			log(round, "ImageIO", System.nanoTime() - start, bytes, images.size()); //$NON-NLS-1$
+			bytes = 0;
+			start = System.nanoTime();
+			for (BufferedImage image : images) bytes += pngEncoder.encode(image).length;
+			log(round, "PngEncoder", System.nanoTime() - start, bytes, images.size()); //$NON-NLS-1$
+		}
+	}
+
+	private static void log(int round, String encoder, long nanos, long bytes, int count) {
+		logger.info(String.format(Locale.ROOT, "%s %-10s %8d ms %8.1f tiles/s %10d bytes %8.0f bytes/tile", //$NON-NLS-1$
+				round == 0 ? "Warm-up" : "Round " + round, encoder, nanos / 1000000, count * 1e9 / nanos, bytes, (double) bytes / count)); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
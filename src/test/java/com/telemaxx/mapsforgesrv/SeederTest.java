@@ -0,0 +1,57 @@
+package com.telemaxx.mapsforgesrv;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SeederTest {
+
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G' };
+
+	@Test
+	void seedsWebpTilesOfWebpTask(@TempDir Path maps, @TempDir Path output) throws Exception {
+		Path configFolder = TestServer.createConfig("", "world", getMapFiles(maps) + "webp-lossless=true\n"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertTrue(seed(configFolder, output.toString()));
+		byte[] tileBytes = Files.readAllBytes(output.resolve("0/0/0.webp")); //$NON-NLS-1$
+		assertEquals("RIFF", new String(tileBytes, 0, 4, StandardCharsets.US_ASCII)); //$NON-NLS-1$
+		assertFalse(Files.exists(output.resolve("0/0/0.png"))); //$NON-NLS-1$
+	}
+
+	@Test
+	void seedsQuantizedTilesOfQuantizingTaskAsPng(@TempDir Path maps, @TempDir Path output) throws Exception {
+		Path configFolder = TestServer.createConfig("", "world", getMapFiles(maps) + "quantize-colors=16\n"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		File mbTiles = output.resolve("world.mbtiles").toFile(); //$NON-NLS-1$
+		assertTrue(seed(configFolder, mbTiles.toString()));
+		MBTilesReader mbTilesReader = new MBTilesReader(mbTiles);
+		try {
+			assertEquals(MapsforgeConfig.TILE_EXTENSION, mbTilesReader.getFormat());
+			byte[] tileBytes = mbTilesReader.get(0, 0, 0);
+			assertArrayEquals(PNG_SIGNATURE, Arrays.copyOf(tileBytes, PNG_SIGNATURE.length));
+		} finally {
+			mbTilesReader.close();
+		}
+	}
+
+	/*
+	 * Seeded task uses map file of its own, since seeder keeps its map files open
+	 */
+	private static String getMapFiles(Path maps) throws Exception {
+		return "mapfiles=" + TestServer.copyWorldMap(maps, "world.map") + "\n"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	private static boolean seed(Path configFolder, String output) throws Exception {
+		MapsforgeConfig mapsforgeConfig = new MapsforgeConfig(
+				new String[] { "-c", configFolder.toString(), "-s", "world", "-z", "0", "-w", "1", "-o", output }); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$
+		return new MapsforgeSeeder(mapsforgeConfig).seed();
+	}
+}
@@ -0,0 +1,98 @@
+package com.telemaxx.mapsforgesrv;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+import com.github.marschall.memoryfilesystem.MemoryFileSystemBuilder;
+
+/**
+ * Server of a test: config folder with server properties and task properties given by test,
+ * tasks started by map handler, which is served by jetty on a free loopback port.
+ * Config folder is kept below build folder, since server exits when its config folder is deleted.
+ */
+class TestServer implements AutoCloseable {
+
+	final Path configFolder;
+	final MapsforgeConfig mapsforgeConfig;
+	final MapsforgeHandler mapsforgeHandler;
+	private final Server server;
+	private final int port;
+
+	/*
+	 * Tasks are given as pairs of task name and task properties
+	 */
+	static TestServer start(String serverProperties, String... tasks) throws Exception {
+		return new TestServer(createConfig(serverProperties, tasks));
+	}
+
+	/*
+	 * Config folder without server, e.g. for seeding
+	 */
+	static Path createConfig(String serverProperties, String... tasks) throws Exception {
+		synchronized (TestServer.class) {
+			if (MapsforgeSrv.memoryFileSystem == null) MapsforgeSrv.memoryFileSystem = MemoryFileSystemBuilder.newEmpty().build();
+		}
+		Path buildFolder = Files.createDirectories(Paths.get("build", "tmp", "testserver")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		Path configFolder = Files.createTempDirectory(buildFolder, "config").toAbsolutePath(); //$NON-NLS-1$
+		Path tasksFolder = Files.createDirectories(configFolder.resolve(MapsforgeConfig.DIRCONFIG_TASKS));
+		Files.write(configFolder.resolve(MapsforgeConfig.FILECONFIG_SERVER), serverProperties.getBytes(StandardCharsets.UTF_8));
+		for (int i = 0; i < tasks.length; i += 2)
+			Files.write(tasksFolder.resolve(tasks[i] + ".properties"), tasks[i + 1].getBytes(StandardCharsets.UTF_8)); //$NON-NLS-1$
+		return configFolder;
+	}
+
+	private TestServer(Path configFolder) throws Exception {
+		this.configFolder = configFolder;
+		mapsforgeConfig = new MapsforgeConfig(new String[] { "-c", configFolder.toString() }); //$NON-NLS-1$
+		mapsforgeHandler = new MapsforgeHandler(mapsforgeConfig);
+		mapsforgeHandler.awaitTasksStarted();
+		server = new Server();
+		ServerConnector connector = new ServerConnector(server);
+		connector.setHost("127.0.0.1"); //$NON-NLS-1$
+		server.addConnector(connector);
+		server.setHandler(mapsforgeHandler);
+		server.start();
+		port = connector.getLocalPort();
+	}
+
+	/*
+	 * Copy of built-in world map as map file within folder
+	 */
+	static Path copyWorldMap(Path folder, String name) throws Exception {
+		Path mapFile = folder.resolve(name);
+		try (InputStream inputStream = TestServer.class.getResourceAsStream("/assets/mapsforgesrv/world.map")) { //$NON-NLS-1$
+			Files.copy(inputStream, mapFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return mapFile;
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	HttpURLConnection open(String path) throws Exception {
+		return (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection(); //$NON-NLS-1$
+	}
+
+	String get(String path) throws Exception {
+		HttpURLConnection connection = open(path);
+		try (InputStream inputStream = connection.getInputStream()) {
+			return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	@Override
+	public void close() throws Exception {
+		server.stop();
+		for (String task : mapsforgeHandler.getTasksHandler().keySet()) mapsforgeHandler.removeTask(task).join();
+	}
+}
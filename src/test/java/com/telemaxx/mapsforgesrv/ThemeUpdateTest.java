@@ -0,0 +1,59 @@
+package com.telemaxx.mapsforgesrv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ThemeUpdateTest {
+
+	private static final String TILE = "/3/4/2.png?task=world"; //$NON-NLS-1$
+
+	@Test
+	void unchangedThemeUpdatedTwiceRevalidatesStaleTiles(@TempDir Path folder) throws Exception {
+		try (TestServer testServer = TestServer.start("tilecache-folder=" + folder + "\ntilecache-revalidate=100\n", "world", "")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			testServer.mapsforgeHandler.getTileCache().awaitIndexed();
+			String entityTag = awaitFresh(testServer);
+			for (int update = 1; update <= 2; update++) {
+				testServer.get("/updatemapstyle"); //$NON-NLS-1$
+				// Tile of previous generation is served stale, although theme bytes didn't change
+				HttpURLConnection connection = testServer.open(TILE);
+				assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+				assertNotNull(connection.getHeaderField("Warning"), "Update " + update); //$NON-NLS-1$ //$NON-NLS-2$
+				assertNull(connection.getHeaderField("ETag")); //$NON-NLS-1$
+				connection.getInputStream().readAllBytes();
+				String revalidatedEntityTag = awaitFresh(testServer);
+				assertNotEquals(entityTag, revalidatedEntityTag);
+				entityTag = revalidatedEntityTag;
+				// Re-rendered tile is cached in the generation requests are answered from
+				assertEquals(entityTag, awaitFresh(testServer));
+				try (Stream<Path> generations = Files.list(folder.resolve("world"))) { //$NON-NLS-1$
+					assertEquals(2, generations.count(), "Current and stale generation"); //$NON-NLS-1$
+				}
+			}
+			String metrics = testServer.get("/metrics"); //$NON-NLS-1$
+			assertEquals(1, MetricsTest.getMetric(metrics, "mapsforgesrv_tile_disk_cache_tiles")); //$NON-NLS-1$
+		}
+	}
+
+	/*
+	 * ETag of tile once it is no longer served stale
+	 */
+	private static String awaitFresh(TestServer testServer) throws Exception {
+		for (int i = 0; i < 200; i++) {
+			HttpURLConnection connection = testServer.open(TILE);
+			connection.getInputStream().readAllBytes();
+			if (connection.getHeaderField("Warning") == null) return connection.getHeaderField("ETag"); //$NON-NLS-1$ //$NON-NLS-2$
+			Thread.sleep(50);
+		}
+		throw new AssertionError("Tile still stale"); //$NON-NLS-1$
+	}
+}